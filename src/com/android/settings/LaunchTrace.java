@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.ArrayMap;
+
+/**
+ * Trace sections and timestamps of the phases of a Settings launch.
+ *
+ * Every phase is shown as a trace section, and the first run of each phase since the process
+ * started, or since {@link #reset()}, is recorded so that SettingsLaunchPerformance can report
+ * which phase of a cold start got slower.
+ */
+public final class LaunchTrace {
+
+    public static final String PHASE_GET_META_DATA = "getMetaData";
+    public static final String PHASE_BUILD_DASHBOARD_CATEGORIES = "buildDashboardCategories";
+    public static final String PHASE_ADD_EXTERNAL_TILES = "addExternalTiles";
+    public static final String PHASE_INDEX_UPDATE = "Index.update";
+    public static final String PHASE_REBUILD_UI = "DashboardSummary.rebuildUI";
+    public static final String PHASE_FIRST_FRAME = "firstFrame";
+
+    public static final String[] PHASES = {
+            PHASE_GET_META_DATA,
+            PHASE_BUILD_DASHBOARD_CATEGORIES,
+            PHASE_ADD_EXTERNAL_TILES,
+            PHASE_INDEX_UPDATE,
+            PHASE_REBUILD_UI,
+            PHASE_FIRST_FRAME
+    };
+
+    // Keys of the results, suffixed by the name of the phase
+    public static final String KEY_START_PREFIX = "start_ms_";
+    public static final String KEY_DURATION_PREFIX = "duration_ms_";
+
+    private static final class Phase {
+        final long startTime;
+        long endTime = -1;
+
+        Phase(long startTime) {
+            this.startTime = startTime;
+        }
+    }
+
+    private static final ArrayMap<String, Phase> sPhases = new ArrayMap<String, Phase>();
+    private static long sOriginTime = -1;
+
+    private LaunchTrace() {
+    }
+
+    /**
+     * Begin a phase running on the current thread, it must be ended on the same thread.
+     */
+    public static void begin(String phase) {
+        Trace.beginSection(phase);
+        start(phase);
+    }
+
+    /**
+     * End a phase begun with {@link #begin(String)}.
+     */
+    public static void end(String phase) {
+        stop(phase);
+        Trace.endSection();
+    }
+
+    /**
+     * Begin a phase which can end on another thread.
+     */
+    public static void beginAsync(String phase) {
+        if (start(phase)) {
+            Trace.asyncTraceBegin(Trace.TRACE_TAG_APP, phase, 0);
+        }
+    }
+
+    /**
+     * End a phase begun with {@link #beginAsync(String)}, if it is running.
+     */
+    public static void endAsync(String phase) {
+        if (stop(phase)) {
+            Trace.asyncTraceEnd(Trace.TRACE_TAG_APP, phase, 0);
+        }
+    }
+
+    /**
+     * Forget the recorded phases, so that the next run of each phase is recorded.
+     */
+    public static synchronized void reset() {
+        sPhases.clear();
+        sOriginTime = -1;
+    }
+
+    /**
+     * @return true if all the phases have been recorded.
+     */
+    public static synchronized boolean isComplete() {
+        for (String phase : PHASES) {
+            final Phase recorded = sPhases.get(phase);
+            if (recorded == null || recorded.endTime < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the start time of the recorded phases, relative to the start of the first one, and
+     * their duration, in milliseconds.
+     */
+    public static synchronized Bundle getResults() {
+        final Bundle results = new Bundle();
+        final int count = sPhases.size();
+        for (int n = 0; n < count; n++) {
+            final Phase phase = sPhases.valueAt(n);
+            if (phase.endTime < 0) {
+                continue;
+            }
+            final String name = sPhases.keyAt(n);
+            results.putLong(KEY_START_PREFIX + name, phase.startTime - sOriginTime);
+            results.putLong(KEY_DURATION_PREFIX + name, phase.endTime - phase.startTime);
+        }
+        return results;
+    }
+
+    private static synchronized boolean start(String phase) {
+        if (sPhases.containsKey(phase)) {
+            return false;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (sOriginTime < 0) {
+            sOriginTime = now;
+        }
+        sPhases.put(phase, new Phase(now));
+        return true;
+    }
+
+    private static synchronized boolean stop(String phase) {
+        final Phase recorded = sPhases.get(phase);
+        if (recorded == null || recorded.endTime >= 0) {
+            return false;
+        }
+        recorded.endTime = SystemClock.elapsedRealtime();
+        return true;
+    }
+}
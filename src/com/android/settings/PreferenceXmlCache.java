@@ -0,0 +1,511 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.preference.DialogPreference;
+import android.preference.ListPreference;
+import android.preference.Preference;
+import android.preference.PreferenceFragment;
+import android.preference.PreferenceGroup;
+import android.preference.PreferenceManager;
+import android.preference.PreferenceScreen;
+import android.preference.TwoStatePreference;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.InflateException;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Process wide cache of the preference hierarchies described by XML resources, keyed by
+ * resource id and configuration.
+ *
+ * A hierarchy is cached as an immutable tree of nodes holding the class and the resolved
+ * attributes of each preference, so that creating its preferences again does not read the XML.
+ * The attributes of a preference can only be fully resolved from the compiled XML, so only the
+ * hierarchies made of framework preferences with the attributes listed in this class are
+ * cached, the other ones keep being inflated from their XML. The preferences created from the
+ * cache must be the same as the inflated ones, see PreferenceXmlCacheTest.
+ *
+ * The first time a hierarchy is needed it is inflated from its XML as usual and parsed in the
+ * background, hierarchies can also be parsed ahead of time with {@link #preload(Context, int)}.
+ */
+public final class PreferenceXmlCache {
+
+    private static final String LOG_TAG = "PreferenceXmlCache";
+
+    // Package of the preferences declared without package, see PreferenceInflater
+    private static final String PREFERENCE_PACKAGE = "android.preference.";
+
+    private static final String TAG_PREFERENCE_SCREEN = "PreferenceScreen";
+    private static final String TAG_INTENT = "intent";
+
+    private static final class Entry {
+        final Configuration configuration;
+        // Null if the hierarchy must be inflated from its XML
+        final Node root;
+
+        Entry(Configuration configuration, Node root) {
+            this.configuration = configuration;
+            this.root = root;
+        }
+    }
+
+    private static final SparseArray<Entry> sEntries = new SparseArray<Entry>();
+    // Resources being parsed in the background
+    private static final Set<Integer> sPending = new HashSet<Integer>();
+
+    private PreferenceXmlCache() {
+    }
+
+    /**
+     * Add the preferences of an XML resource to the preference screen of a fragment, creating
+     * the screen if it has none, the same way as
+     * {@link PreferenceFragment#addPreferencesFromResource(int)} would. Must be called from the
+     * main thread.
+     *
+     * @return false if the resource is not cached, its preferences must then be inflated from
+     * the XML.
+     */
+    static boolean addPreferences(PreferenceFragment fragment, int resId) {
+        final Context context = fragment.getActivity();
+        final Node root = getRoot(context, resId);
+        if (root == null) {
+            return false;
+        }
+
+        final PreferenceManager manager = fragment.getPreferenceManager();
+        PreferenceScreen screen = fragment.getPreferenceScreen();
+        if (screen == null) {
+            screen = manager.createPreferenceScreen(context);
+            root.applyAttributes(screen);
+        }
+        root.addChildren(context, manager, screen);
+        fragment.setPreferenceScreen(screen);
+        return true;
+    }
+
+    /**
+     * Parse an XML resource if it is not cached yet, can be called from any thread.
+     */
+    public static void preload(Context context, int resId) {
+        final Resources res = context.getResources();
+        final Configuration configuration = new Configuration(res.getConfiguration());
+        synchronized (sEntries) {
+            final Entry entry = sEntries.get(resId);
+            if (entry != null && entry.configuration.equals(configuration)) {
+                return;
+            }
+        }
+
+        Node root = null;
+        XmlResourceParser parser = null;
+        try {
+            parser = res.getXml(resId);
+            int type;
+            while ((type = parser.next()) != XmlPullParser.START_TAG
+                    && type != XmlPullParser.END_DOCUMENT) {
+                // Skip to the root element
+            }
+            if (type == XmlPullParser.START_TAG
+                    && TAG_PREFERENCE_SCREEN.equals(parser.getName())) {
+                root = parseNode(res, parser);
+            }
+        } catch (XmlPullParserException | IOException | RuntimeException e) {
+            Log.w(LOG_TAG, "Cannot parse preference XML " + resId, e);
+        } finally {
+            if (parser != null) {
+                parser.close();
+            }
+        }
+
+        synchronized (sEntries) {
+            sEntries.put(resId, new Entry(configuration, root));
+        }
+    }
+
+    private static Node getRoot(Context context, final int resId) {
+        synchronized (sEntries) {
+            final Entry entry = sEntries.get(resId);
+            if (entry != null
+                    && entry.configuration.equals(context.getResources().getConfiguration())) {
+                return entry.root;
+            }
+            if (!sPending.add(resId)) {
+                return null;
+            }
+        }
+
+        // Parse it in the background for the next time
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    preload(appContext, resId);
+                } finally {
+                    synchronized (sEntries) {
+                        sPending.remove(resId);
+                    }
+                }
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Parse the element the parser is on and its children.
+     *
+     * @return the node, or null if it cannot be cached.
+     */
+    private static Node parseNode(Resources res, XmlResourceParser parser)
+            throws XmlPullParserException, IOException {
+        final String name = parser.getName();
+        final Class<? extends Preference> clazz;
+        Constructor<? extends Preference> constructor = null;
+        if (TAG_PREFERENCE_SCREEN.equals(name)) {
+            clazz = PreferenceScreen.class;
+        } else {
+            // Preferences from other packages may read attributes which are not cached
+            if (name.indexOf('.') != -1 && !name.startsWith(PREFERENCE_PACKAGE)) {
+                return null;
+            }
+            final String className = name.startsWith(PREFERENCE_PACKAGE)
+                    ? name : PREFERENCE_PACKAGE + name;
+            try {
+                clazz = Class.forName(className).asSubclass(Preference.class);
+                constructor = clazz.getConstructor(Context.class, AttributeSet.class);
+            } catch (ClassNotFoundException | ClassCastException | NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        final SparseArray<Object> attributes = new SparseArray<Object>();
+        final int count = parser.getAttributeCount();
+        for (int i = 0; i < count; i++) {
+            final int attr = parser.getAttributeNameResource(i);
+            if (attr == R.attr.keywords) {
+                // Only used by the search index
+                continue;
+            }
+            if (!isSupported(clazz, attr)) {
+                return null;
+            }
+            final Object value = getValue(res, parser, i, attr);
+            if (value == null) {
+                return null;
+            }
+            attributes.put(attr, value);
+        }
+
+        Intent intent = null;
+        final List<Node> children = new ArrayList<Node>();
+        final int depth = parser.getDepth();
+        int type;
+        while (((type = parser.next()) != XmlPullParser.END_TAG || parser.getDepth() > depth)
+                && type != XmlPullParser.END_DOCUMENT) {
+            if (type != XmlPullParser.START_TAG) {
+                continue;
+            }
+            if (TAG_INTENT.equals(parser.getName())) {
+                if (intent != null) {
+                    return null;
+                }
+                intent = parseIntent(res, parser);
+                if (intent == null) {
+                    return null;
+                }
+            } else {
+                if (!PreferenceGroup.class.isAssignableFrom(clazz)) {
+                    return null;
+                }
+                final Node child = parseNode(res, parser);
+                if (child == null) {
+                    return null;
+                }
+                children.add(child);
+            }
+        }
+        return new Node(constructor, attributes, intent, children);
+    }
+
+    /**
+     * Parse an intent element without children.
+     *
+     * @return the intent, or null if it cannot be cached.
+     */
+    private static Intent parseIntent(Resources res, XmlResourceParser parser)
+            throws XmlPullParserException, IOException {
+        String action = null;
+        String targetPackage = null;
+        String targetClass = null;
+        String data = null;
+        String mimeType = null;
+        final int count = parser.getAttributeCount();
+        for (int i = 0; i < count; i++) {
+            final String value = getString(res, parser, i);
+            if (value == null) {
+                return null;
+            }
+            switch (parser.getAttributeNameResource(i)) {
+                case android.R.attr.action:
+                    action = value;
+                    break;
+                case android.R.attr.targetPackage:
+                    targetPackage = value;
+                    break;
+                case android.R.attr.targetClass:
+                    targetClass = value;
+                    break;
+                case android.R.attr.data:
+                    data = value;
+                    break;
+                case android.R.attr.mimeType:
+                    mimeType = value;
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        final int depth = parser.getDepth();
+        int type;
+        while (((type = parser.next()) != XmlPullParser.END_TAG || parser.getDepth() > depth)
+                && type != XmlPullParser.END_DOCUMENT) {
+            if (type == XmlPullParser.START_TAG) {
+                // Categories and extras are not cached
+                return null;
+            }
+        }
+
+        final Intent intent = new Intent(action);
+        if (targetPackage != null && targetClass != null) {
+            intent.setComponent(new ComponentName(targetPackage, targetClass));
+        }
+        if (data != null || mimeType != null) {
+            intent.setDataAndType((data != null) ? Uri.parse(data) : null, mimeType);
+        }
+        return intent;
+    }
+
+    private static boolean isSupported(Class<? extends Preference> clazz, int attr) {
+        switch (attr) {
+            case android.R.attr.key:
+            case android.R.attr.title:
+            case android.R.attr.summary:
+            case android.R.attr.fragment:
+            case android.R.attr.dependency:
+            case android.R.attr.persistent:
+            case android.R.attr.enabled:
+            case android.R.attr.selectable:
+            case android.R.attr.order:
+            case android.R.attr.icon:
+            case android.R.attr.layout:
+                return true;
+            case android.R.attr.dialogTitle:
+                return DialogPreference.class.isAssignableFrom(clazz);
+            case android.R.attr.entries:
+            case android.R.attr.entryValues:
+                return ListPreference.class.isAssignableFrom(clazz);
+            case android.R.attr.summaryOn:
+            case android.R.attr.summaryOff:
+                return TwoStatePreference.class.isAssignableFrom(clazz);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the resolved value of a supported attribute, or null if it cannot be cached.
+     */
+    private static Object getValue(Resources res, XmlResourceParser parser, int index,
+            int attr) {
+        final String raw = parser.getAttributeValue(index);
+        if (raw == null || raw.startsWith("?")) {
+            // Theme attributes are resolved against the theme of each activity
+            return null;
+        }
+        final int resId = parser.getAttributeResourceValue(index, 0);
+        switch (attr) {
+            case android.R.attr.key:
+            case android.R.attr.fragment:
+            case android.R.attr.dependency:
+                return getString(res, parser, index);
+            case android.R.attr.title:
+                // The resource id is kept, as the inflated preferences keep it as title
+                // resource, see Preference.getTitleRes()
+                return (resId != 0) ? (Object) resId : raw;
+            case android.R.attr.summary:
+            case android.R.attr.dialogTitle:
+            case android.R.attr.summaryOn:
+            case android.R.attr.summaryOff:
+                // Resolved as strings, as TypedArray.getString() does for the inflated ones
+                return getString(res, parser, index);
+            case android.R.attr.persistent:
+            case android.R.attr.enabled:
+            case android.R.attr.selectable:
+                return (resId != 0) ? res.getBoolean(resId)
+                        : parser.getAttributeBooleanValue(index, false);
+            case android.R.attr.order:
+                return (resId != 0) ? res.getInteger(resId)
+                        : parser.getAttributeIntValue(index, 0);
+            case android.R.attr.icon:
+            case android.R.attr.layout:
+                return (resId != 0) ? resId : null;
+            case android.R.attr.entries:
+            case android.R.attr.entryValues:
+                return (resId != 0) ? res.getTextArray(resId) : null;
+            default:
+                return null;
+        }
+    }
+
+    private static String getString(Resources res, XmlResourceParser parser, int index) {
+        final String raw = parser.getAttributeValue(index);
+        if (raw == null || raw.startsWith("?")) {
+            return null;
+        }
+        final int resId = parser.getAttributeResourceValue(index, 0);
+        return (resId != 0) ? res.getString(resId) : raw;
+    }
+
+    private static final class Node {
+        // Null for a preference screen
+        final Constructor<? extends Preference> constructor;
+        // Resolved values by attribute
+        final SparseArray<Object> attributes;
+        final Intent intent;
+        final List<Node> children;
+
+        Node(Constructor<? extends Preference> constructor, SparseArray<Object> attributes,
+                Intent intent, List<Node> children) {
+            this.constructor = constructor;
+            this.attributes = attributes;
+            this.intent = intent;
+            this.children = Collections.unmodifiableList(children);
+        }
+
+        Preference newPreference(Context context, PreferenceManager manager) {
+            final Preference preference;
+            if (constructor == null) {
+                preference = manager.createPreferenceScreen(context);
+            } else {
+                try {
+                    preference = constructor.newInstance(context, null);
+                } catch (ReflectiveOperationException e) {
+                    throw new InflateException("Cannot create " + constructor.getName(), e);
+                }
+            }
+            applyAttributes(preference);
+            return preference;
+        }
+
+        void applyAttributes(Preference preference) {
+            final int count = attributes.size();
+            for (int n = 0; n < count; n++) {
+                final Object value = attributes.valueAt(n);
+                switch (attributes.keyAt(n)) {
+                    case android.R.attr.key:
+                        preference.setKey((String) value);
+                        break;
+                    case android.R.attr.title:
+                        if (value instanceof Integer) {
+                            preference.setTitle((Integer) value);
+                        } else {
+                            preference.setTitle((CharSequence) value);
+                        }
+                        break;
+                    case android.R.attr.summary:
+                        preference.setSummary((CharSequence) value);
+                        break;
+                    case android.R.attr.fragment:
+                        preference.setFragment((String) value);
+                        break;
+                    case android.R.attr.dependency:
+                        preference.setDependency((String) value);
+                        break;
+                    case android.R.attr.persistent:
+                        preference.setPersistent((Boolean) value);
+                        break;
+                    case android.R.attr.enabled:
+                        preference.setEnabled((Boolean) value);
+                        break;
+                    case android.R.attr.selectable:
+                        preference.setSelectable((Boolean) value);
+                        break;
+                    case android.R.attr.order:
+                        preference.setOrder((Integer) value);
+                        break;
+                    case android.R.attr.icon:
+                        preference.setIcon((Integer) value);
+                        break;
+                    case android.R.attr.layout:
+                        preference.setLayoutResource((Integer) value);
+                        break;
+                    case android.R.attr.dialogTitle:
+                        ((DialogPreference) preference).setDialogTitle((CharSequence) value);
+                        break;
+                    case android.R.attr.entries:
+                        ((ListPreference) preference).setEntries(
+                                ((CharSequence[]) value).clone());
+                        break;
+                    case android.R.attr.entryValues:
+                        ((ListPreference) preference).setEntryValues(
+                                ((CharSequence[]) value).clone());
+                        break;
+                    case android.R.attr.summaryOn:
+                        ((TwoStatePreference) preference).setSummaryOn((CharSequence) value);
+                        break;
+                    case android.R.attr.summaryOff:
+                        ((TwoStatePreference) preference).setSummaryOff((CharSequence) value);
+                        break;
+                }
+            }
+            if (intent != null) {
+                preference.setIntent(new Intent(intent));
+            }
+        }
+
+        void addChildren(Context context, PreferenceManager manager, PreferenceGroup group) {
+            for (Node child : children) {
+                final Preference preference = child.newPreference(context, manager);
+                group.addPreference(preference);
+                if (!child.children.isEmpty()) {
+                    child.addChildren(context, manager, (PreferenceGroup) preference);
+                }
+            }
+        }
+    }
+}
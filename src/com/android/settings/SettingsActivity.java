@@ -60,75 +60,30 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
 import android.widget.SearchView;
 
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.XmlUtils;
-import com.android.settings.accessibility.AccessibilitySettings;
-import com.android.settings.accessibility.CaptionPropertiesFragment;
-import com.android.settings.accounts.AccountSettings;
-import com.android.settings.accounts.AccountSyncSettings;
-import com.android.settings.applications.DrawOverlayDetails;
-import com.android.settings.applications.InstalledAppDetails;
 import com.android.settings.applications.ManageApplications;
-import com.android.settings.applications.ManageAssist;
-import com.android.settings.applications.ProcessStatsSummary;
-import com.android.settings.applications.ProcessStatsUi;
-import com.android.settings.applications.UsageAccessDetails;
-import com.android.settings.applications.WriteSettingsDetails;
-import com.android.settings.bluetooth.BluetoothSettings;
+import com.android.settings.dashboard.DashboardCategoriesCache;
 import com.android.settings.dashboard.DashboardCategory;
 import com.android.settings.dashboard.DashboardSummary;
 import com.android.settings.dashboard.DashboardTile;
 import com.android.settings.dashboard.NoHomeDialogFragment;
 import com.android.settings.dashboard.SearchResultsSummary;
-import com.android.settings.deviceinfo.PrivateVolumeForget;
-import com.android.settings.deviceinfo.PrivateVolumeSettings;
-import com.android.settings.deviceinfo.PublicVolumeSettings;
-import com.android.settings.deviceinfo.StorageSettings;
-import com.android.settings.fuelgauge.BatterySaverSettings;
-import com.android.settings.fuelgauge.PowerUsageDetail;
-import com.android.settings.fuelgauge.PowerUsageSummary;
-import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
-import com.android.settings.inputmethod.KeyboardLayoutPickerFragment;
-import com.android.settings.inputmethod.SpellCheckersSettings;
-import com.android.settings.inputmethod.UserDictionaryList;
-import com.android.settings.location.LocationSettings;
-import com.android.settings.nfc.AndroidBeam;
-import com.android.settings.nfc.PaymentSettings;
-import com.android.settings.notification.AppNotificationSettings;
-import com.android.settings.notification.NotificationAccessSettings;
-import com.android.settings.notification.NotificationSettings;
-import com.android.settings.notification.NotificationStation;
-import com.android.settings.notification.OtherSoundSettings;
-import com.android.settings.notification.ZenAccessSettings;
-import com.android.settings.notification.ZenModeAutomationSettings;
-import com.android.settings.notification.ZenModeEventRuleSettings;
-import com.android.settings.notification.ZenModeExternalRuleSettings;
-import com.android.settings.notification.ZenModePrioritySettings;
-import com.android.settings.notification.ZenModeSettings;
-import com.android.settings.notification.ZenModeScheduleRuleSettings;
-import com.android.settings.print.PrintJobSettingsFragment;
-import com.android.settings.print.PrintSettingsFragment;
 import com.android.settings.search.DynamicIndexableContentMonitor;
 import com.android.settings.search.Index;
-import com.android.settings.sim.SimSettings;
-import com.android.settings.tts.TextToSpeechSettings;
-import com.android.settings.users.UserSettings;
-import com.android.settings.vpn2.VpnSettings;
-import com.android.settings.wfd.WifiDisplaySettings;
 import com.android.settings.widget.SwitchBar;
-import com.android.settings.wifi.AdvancedWifiSettings;
-import com.android.settings.wifi.SavedAccessPointsWifiSettings;
-import com.android.settings.wifi.WifiSettings;
-import com.android.settings.wifi.p2p.WifiP2pSettings;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -284,78 +239,78 @@ public class SettingsActivity extends Activity
     };
 
     private static final String[] ENTRY_FRAGMENTS = {
-            WirelessSettings.class.getName(),
-            WifiSettings.class.getName(),
-            AdvancedWifiSettings.class.getName(),
-            SavedAccessPointsWifiSettings.class.getName(),
-            BluetoothSettings.class.getName(),
-            SimSettings.class.getName(),
-            TetherSettings.class.getName(),
-            WifiP2pSettings.class.getName(),
-            VpnSettings.class.getName(),
-            DateTimeSettings.class.getName(),
-            LocalePicker.class.getName(),
-            InputMethodAndLanguageSettings.class.getName(),
-            SpellCheckersSettings.class.getName(),
-            UserDictionaryList.class.getName(),
-            UserDictionarySettings.class.getName(),
-            HomeSettings.class.getName(),
-            DisplaySettings.class.getName(),
-            DeviceInfoSettings.class.getName(),
-            ManageApplications.class.getName(),
-            ManageAssist.class.getName(),
-            ProcessStatsUi.class.getName(),
-            NotificationStation.class.getName(),
-            LocationSettings.class.getName(),
-            SecuritySettings.class.getName(),
-            UsageAccessDetails.class.getName(),
-            PrivacySettings.class.getName(),
-            DeviceAdminSettings.class.getName(),
-            AccessibilitySettings.class.getName(),
-            CaptionPropertiesFragment.class.getName(),
-            com.android.settings.accessibility.ToggleDaltonizerPreferenceFragment.class.getName(),
-            TextToSpeechSettings.class.getName(),
-            StorageSettings.class.getName(),
-            PrivateVolumeForget.class.getName(),
-            PrivateVolumeSettings.class.getName(),
-            PublicVolumeSettings.class.getName(),
-            DevelopmentSettings.class.getName(),
-            AndroidBeam.class.getName(),
-            WifiDisplaySettings.class.getName(),
-            PowerUsageSummary.class.getName(),
-            AccountSyncSettings.class.getName(),
-            AccountSettings.class.getName(),
-            CryptKeeperSettings.class.getName(),
-            DataUsageSummary.class.getName(),
-            DreamSettings.class.getName(),
-            UserSettings.class.getName(),
-            NotificationAccessSettings.class.getName(),
-            ZenAccessSettings.class.getName(),
-            PrintSettingsFragment.class.getName(),
-            PrintJobSettingsFragment.class.getName(),
-            TrustedCredentialsSettings.class.getName(),
-            PaymentSettings.class.getName(),
-            KeyboardLayoutPickerFragment.class.getName(),
-            ZenModeSettings.class.getName(),
-            NotificationSettings.class.getName(),
-            ChooseLockPassword.ChooseLockPasswordFragment.class.getName(),
-            ChooseLockPattern.ChooseLockPatternFragment.class.getName(),
-            InstalledAppDetails.class.getName(),
-            BatterySaverSettings.class.getName(),
-            AppNotificationSettings.class.getName(),
-            OtherSoundSettings.class.getName(),
-            ApnSettings.class.getName(),
-            WifiCallingSettings.class.getName(),
-            ZenModePrioritySettings.class.getName(),
-            ZenModeAutomationSettings.class.getName(),
-            ZenModeScheduleRuleSettings.class.getName(),
-            ZenModeEventRuleSettings.class.getName(),
-            ZenModeExternalRuleSettings.class.getName(),
-            ProcessStatsUi.class.getName(),
-            PowerUsageDetail.class.getName(),
-            ProcessStatsSummary.class.getName(),
-            DrawOverlayDetails.class.getName(),
-            WriteSettingsDetails.class.getName(),
+            "com.android.settings.WirelessSettings",
+            "com.android.settings.wifi.WifiSettings",
+            "com.android.settings.wifi.AdvancedWifiSettings",
+            "com.android.settings.wifi.SavedAccessPointsWifiSettings",
+            "com.android.settings.bluetooth.BluetoothSettings",
+            "com.android.settings.sim.SimSettings",
+            "com.android.settings.TetherSettings",
+            "com.android.settings.wifi.p2p.WifiP2pSettings",
+            "com.android.settings.vpn2.VpnSettings",
+            "com.android.settings.DateTimeSettings",
+            "com.android.settings.LocalePicker",
+            "com.android.settings.inputmethod.InputMethodAndLanguageSettings",
+            "com.android.settings.inputmethod.SpellCheckersSettings",
+            "com.android.settings.inputmethod.UserDictionaryList",
+            "com.android.settings.UserDictionarySettings",
+            "com.android.settings.HomeSettings",
+            "com.android.settings.DisplaySettings",
+            "com.android.settings.DeviceInfoSettings",
+            "com.android.settings.applications.ManageApplications",
+            "com.android.settings.applications.ManageAssist",
+            "com.android.settings.applications.ProcessStatsUi",
+            "com.android.settings.notification.NotificationStation",
+            "com.android.settings.location.LocationSettings",
+            "com.android.settings.SecuritySettings",
+            "com.android.settings.applications.UsageAccessDetails",
+            "com.android.settings.PrivacySettings",
+            "com.android.settings.DeviceAdminSettings",
+            "com.android.settings.accessibility.AccessibilitySettings",
+            "com.android.settings.accessibility.CaptionPropertiesFragment",
+            "com.android.settings.accessibility.ToggleDaltonizerPreferenceFragment",
+            "com.android.settings.tts.TextToSpeechSettings",
+            "com.android.settings.deviceinfo.StorageSettings",
+            "com.android.settings.deviceinfo.PrivateVolumeForget",
+            "com.android.settings.deviceinfo.PrivateVolumeSettings",
+            "com.android.settings.deviceinfo.PublicVolumeSettings",
+            "com.android.settings.DevelopmentSettings",
+            "com.android.settings.nfc.AndroidBeam",
+            "com.android.settings.wfd.WifiDisplaySettings",
+            "com.android.settings.fuelgauge.PowerUsageSummary",
+            "com.android.settings.accounts.AccountSyncSettings",
+            "com.android.settings.accounts.AccountSettings",
+            "com.android.settings.CryptKeeperSettings",
+            "com.android.settings.DataUsageSummary",
+            "com.android.settings.DreamSettings",
+            "com.android.settings.users.UserSettings",
+            "com.android.settings.notification.NotificationAccessSettings",
+            "com.android.settings.notification.ZenAccessSettings",
+            "com.android.settings.print.PrintSettingsFragment",
+            "com.android.settings.print.PrintJobSettingsFragment",
+            "com.android.settings.TrustedCredentialsSettings",
+            "com.android.settings.nfc.PaymentSettings",
+            "com.android.settings.inputmethod.KeyboardLayoutPickerFragment",
+            "com.android.settings.notification.ZenModeSettings",
+            "com.android.settings.notification.NotificationSettings",
+            "com.android.settings.ChooseLockPassword$ChooseLockPasswordFragment",
+            "com.android.settings.ChooseLockPattern$ChooseLockPatternFragment",
+            "com.android.settings.applications.InstalledAppDetails",
+            "com.android.settings.fuelgauge.BatterySaverSettings",
+            "com.android.settings.notification.AppNotificationSettings",
+            "com.android.settings.notification.OtherSoundSettings",
+            "com.android.settings.ApnSettings",
+            "com.android.settings.WifiCallingSettings",
+            "com.android.settings.notification.ZenModePrioritySettings",
+            "com.android.settings.notification.ZenModeAutomationSettings",
+            "com.android.settings.notification.ZenModeScheduleRuleSettings",
+            "com.android.settings.notification.ZenModeEventRuleSettings",
+            "com.android.settings.notification.ZenModeExternalRuleSettings",
+            "com.android.settings.applications.ProcessStatsUi",
+            "com.android.settings.fuelgauge.PowerUsageDetail",
+            "com.android.settings.applications.ProcessStatsSummary",
+            "com.android.settings.applications.DrawOverlayDetails",
+            "com.android.settings.applications.WriteSettingsDetails",
     };
 
 
@@ -404,7 +359,7 @@ public class SettingsActivity extends Activity
     private SearchResultsSummary mSearchResultsFragment;
     private String mSearchQuery;
 
-    // Categories
+    // Categories, only accessed from the main thread
     private ArrayList<DashboardCategory> mCategories = new ArrayList<DashboardCategory>();
 
     private static final String MSG_DATA_FORCE_REFRESH = "msg_data_force_refresh";
@@ -415,8 +370,11 @@ public class SettingsActivity extends Activity
             switch (msg.what) {
                 case MSG_BUILD_CATEGORIES: {
                     final boolean forceRefresh = msg.getData().getBoolean(MSG_DATA_FORCE_REFRESH);
-                    if (forceRefresh) {
-                        buildDashboardCategories(mCategories);
+                    // The dashboard builds the categories in the background
+                    final Fragment fragment =
+                            getFragmentManager().findFragmentById(R.id.main_content);
+                    if (forceRefresh && fragment instanceof DashboardSummary) {
+                        ((DashboardSummary) fragment).refresh();
                     }
                 } break;
             }
@@ -432,13 +390,45 @@ public class SettingsActivity extends Activity
         return mSwitchBar;
     }
 
-    public List<DashboardCategory> getDashboardCategories(boolean forceRefresh) {
-        if (forceRefresh || mCategories.size() == 0) {
-            buildDashboardCategories(mCategories);
+    /**
+     * Get the categories shown by the dashboard, must be called from the main thread.
+     *
+     * Until the dashboard has been built, these are the categories built by a previous launch,
+     * restored synchronously so that the first frame of the dashboard can show them.
+     *
+     * @return the categories, empty if the dashboard has not been built yet and there are no
+     * cached categories.
+     */
+    public List<DashboardCategory> getDashboardCategories() {
+        if (mCategories.size() == 0) {
+            final List<DashboardCategory> categories = DashboardCategoriesCache.read(this);
+            if (categories != null) {
+                mCategories.addAll(categories);
+            }
         }
         return mCategories;
     }
 
+    /**
+     * Set the categories shown by the dashboard, must be called from the main thread.
+     */
+    public void setDashboardCategories(List<DashboardCategory> categories) {
+        if (categories != mCategories) {
+            mCategories.clear();
+            mCategories.addAll(categories);
+        }
+    }
+
+    /**
+     * Build the categories and update the cached ones, can be called from any thread.
+     */
+    public List<DashboardCategory> buildDashboardCategories() {
+        final List<DashboardCategory> categories = new ArrayList<DashboardCategory>();
+        buildDashboardCategories(categories);
+        DashboardCategoriesCache.write(this, categories);
+        return categories;
+    }
+
     @Override
     public boolean onPreferenceStartFragment(PreferenceFragment caller, Preference pref) {
         // Override the fragment title for Wallpaper settings
@@ -468,6 +458,7 @@ public class SettingsActivity extends Activity
             Message msg = new Message();
             msg.what = MSG_BUILD_CATEGORIES;
             msg.getData().putBoolean(MSG_DATA_FORCE_REFRESH, forceRefresh);
+            mHandler.sendMessage(msg);
         }
     }
 
@@ -539,10 +530,13 @@ public class SettingsActivity extends Activity
 
     @Override
     protected void onCreate(Bundle savedState) {
+        LaunchTrace.beginAsync(LaunchTrace.PHASE_FIRST_FRAME);
         super.onCreate(savedState);
 
         // Should happen before any call to getIntent()
+        LaunchTrace.begin(LaunchTrace.PHASE_GET_META_DATA);
         getMetaData();
+        LaunchTrace.end(LaunchTrace.PHASE_GET_META_DATA);
 
         final Intent intent = getIntent();
         if (intent.hasExtra(EXTRA_UI_OPTIONS)) {
@@ -586,6 +580,17 @@ public class SettingsActivity extends Activity
 
         mContent = (ViewGroup) findViewById(R.id.main_content);
 
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        LaunchTrace.endAsync(LaunchTrace.PHASE_FIRST_FRAME);
+                        return true;
+                    }
+                });
+
         getFragmentManager().addOnBackStackChangedListener(this);
 
         if (mIsShowingDashboard) {
@@ -859,6 +864,12 @@ public class SettingsActivity extends Activity
         mDevelopmentPreferencesListener = null;
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        Index.getInstance(getApplicationContext()).dump(prefix, writer);
+    }
+
     protected boolean isValidFragment(String fragmentName) {
         // Almost all fragments are wrapped in this,
         // except for a few that have their own activities.
@@ -1052,9 +1063,14 @@ public class SettingsActivity extends Activity
      * @param categories The list in which to place the tiles categories.
      */
     private void buildDashboardCategories(List<DashboardCategory> categories) {
-        categories.clear();
-        loadCategoriesFromResource(R.xml.dashboard_categories, categories, this);
-        updateTilesList(categories);
+        LaunchTrace.begin(LaunchTrace.PHASE_BUILD_DASHBOARD_CATEGORIES);
+        try {
+            categories.clear();
+            loadCategoriesFromResource(R.xml.dashboard_categories, categories, this);
+            updateTilesList(categories);
+        } finally {
+            LaunchTrace.end(LaunchTrace.PHASE_BUILD_DASHBOARD_CATEGORIES);
+        }
     }
 
     /**
@@ -1326,11 +1342,16 @@ public class SettingsActivity extends Activity
     }
 
     private void addExternalTiles(List<DashboardCategory> target) {
-        Map<Pair<String, String>, DashboardTile> addedCache =
-                new ArrayMap<Pair<String, String>, DashboardTile>();
-        UserManager userManager = UserManager.get(this);
-        for (UserHandle user : userManager.getUserProfiles()) {
-            addExternalTiles(target, user, addedCache);
+        LaunchTrace.begin(LaunchTrace.PHASE_ADD_EXTERNAL_TILES);
+        try {
+            Map<Pair<String, String>, DashboardTile> addedCache =
+                    new ArrayMap<Pair<String, String>, DashboardTile>();
+            UserManager userManager = UserManager.get(this);
+            for (UserHandle user : userManager.getUserProfiles()) {
+                addExternalTiles(target, user, addedCache);
+            }
+        } finally {
+            LaunchTrace.end(LaunchTrace.PHASE_ADD_EXTERNAL_TILES);
         }
     }
 
@@ -1407,7 +1428,13 @@ public class SettingsActivity extends Activity
                 // now tell them about why they aren't seeing 'Home' in the list.
                 if (sShowNoHomeNotice) {
                     sShowNoHomeNotice = false;
-                    NoHomeDialogFragment.show(this);
+                    // The categories can be revalidated in the background
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            NoHomeDialogFragment.show(SettingsActivity.this);
+                        }
+                    });
                 }
                 return false;
             } else {
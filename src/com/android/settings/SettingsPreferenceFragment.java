@@ -99,6 +99,14 @@ public abstract class SettingsPreferenceFragment extends InstrumentedPreferenceF
         }
     }
 
+    @Override
+    public void addPreferencesFromResource(int preferencesResId) {
+        // Use the cached hierarchy when there is one, see PreferenceXmlCache
+        if (!PreferenceXmlCache.addPreferences(this, preferencesResId)) {
+            super.addPreferencesFromResource(preferencesResId);
+        }
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
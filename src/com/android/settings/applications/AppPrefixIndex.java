@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.applications;
+
+import com.android.settingslib.applications.ApplicationsState;
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Index of the words of the normalized labels of a list of apps, to find the apps with a label
+ * containing a prefix at the start of a word without scanning all the labels. The apps are
+ * usually {@link AppEntry AppEntries}, see {@link #forApps}.
+ *
+ * The index holds the suffixes of the labels starting at each word, sorted, so that the
+ * suffixes starting with a prefix are found by binary search. When the prefix of a query
+ * extends the prefix of the previous one, only the suffixes matching the previous prefix are
+ * searched.
+ */
+final class AppPrefixIndex<T> {
+
+    private static final class Token {
+        // Suffix of a normalized label starting at a word
+        final String suffix;
+        // Position of the app in the indexed list
+        final int position;
+
+        Token(String suffix, int position) {
+            this.suffix = suffix;
+            this.position = position;
+        }
+    }
+
+    private static final Comparator<Token> TOKEN_COMPARATOR = new Comparator<Token>() {
+        @Override
+        public int compare(Token lhs, Token rhs) {
+            return lhs.suffix.compareTo(rhs.suffix);
+        }
+    };
+
+    private final ArrayList<T> mEntries;
+    private final Token[] mTokens;
+
+    // Normalized prefix of the last query and the range of the tokens it matched
+    private String mLastPrefix;
+    private int mLastStart;
+    private int mLastEnd;
+
+    /**
+     * @param normalizedLabels the labels of the apps, normalized by
+     *         {@link ApplicationsState#normalize}, in the order of the apps.
+     */
+    AppPrefixIndex(ArrayList<T> entries, List<String> normalizedLabels) {
+        mEntries = entries;
+        final ArrayList<Token> tokens = new ArrayList<Token>(entries.size() * 2);
+        for (int i = 0; i < entries.size(); i++) {
+            final String label = normalizedLabels.get(i);
+            tokens.add(new Token(label, i));
+            int space = label.indexOf(' ');
+            while (space != -1) {
+                tokens.add(new Token(label.substring(space + 1), i));
+                space = label.indexOf(' ', space + 1);
+            }
+        }
+        mTokens = tokens.toArray(new Token[tokens.size()]);
+        Arrays.sort(mTokens, TOKEN_COMPARATOR);
+    }
+
+    static AppPrefixIndex<AppEntry> forApps(ArrayList<AppEntry> entries) {
+        final ArrayList<String> labels = new ArrayList<String>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            labels.add(entries.get(i).getNormalizedLabel());
+        }
+        return new AppPrefixIndex<AppEntry>(entries, labels);
+    }
+
+    /**
+     * @return the list of apps indexed.
+     */
+    ArrayList<T> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Find the apps with a word of their label starting with a prefix, which may span several
+     * words.
+     *
+     * @return the apps in the order of the indexed list.
+     */
+    ArrayList<T> filter(CharSequence prefix) {
+        if (prefix == null || prefix.length() == 0) {
+            return mEntries;
+        }
+
+        final String normalized = ApplicationsState.normalize(prefix.toString());
+        int start = 0;
+        int end = mTokens.length;
+        if (mLastPrefix != null && normalized.startsWith(mLastPrefix)) {
+            // Narrow the last matches
+            start = mLastStart;
+            end = mLastEnd;
+        }
+        start = lowerBound(normalized, start, end);
+        end = upperBound(normalized, start, end);
+        mLastPrefix = normalized;
+        mLastStart = start;
+        mLastEnd = end;
+
+        final int[] positions = new int[end - start];
+        for (int n = start; n < end; n++) {
+            positions[n - start] = mTokens[n].position;
+        }
+        Arrays.sort(positions);
+
+        final ArrayList<T> result = new ArrayList<T>(positions.length);
+        int last = -1;
+        for (int position : positions) {
+            if (position != last) {
+                result.add(mEntries.get(position));
+                last = position;
+            }
+        }
+        return result;
+    }
+
+    // First token in [start, end) not before the prefix
+    private int lowerBound(String prefix, int start, int end) {
+        while (start < end) {
+            final int mid = (start + end) >>> 1;
+            if (mTokens[mid].suffix.compareTo(prefix) < 0) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+
+    // First token in [start, end) not starting with the prefix, start being the lower bound
+    private int upperBound(String prefix, int start, int end) {
+        while (start < end) {
+            final int mid = (start + end) >>> 1;
+            if (mTokens[mid].suffix.startsWith(prefix)) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+}
@@ -23,6 +23,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.PreferenceFrameLayout;
@@ -722,24 +723,24 @@ public class ManageApplications extends InstrumentedFragment
         private AppFilter mOverrideFilter;
         private boolean mHasReceivedLoadEntries;
         private boolean mHasReceivedBridgeCallback;
+        // Index of the labels of mBaseEntries, only used on the background looper
+        private AppPrefixIndex<ApplicationsState.AppEntry> mPrefixIndex;
+        // Incremented when mEntries is updated, to drop the stale filter results
+        private int mFilterGeneration;
+        private final Handler mBgHandler;
+        private final Handler mFgHandler = new Handler();
 
         private Filter mFilter = new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
-                ArrayList<ApplicationsState.AppEntry> entries
-                        = applyPrefixFilter(constraint, mBaseEntries);
-                FilterResults fr = new FilterResults();
-                fr.values = entries;
-                fr.count = entries.size();
-                return fr;
+                // The entries are filtered on the background looper, see applyPrefixFilter()
+                return new FilterResults();
             }
 
             @Override
-            @SuppressWarnings("unchecked")
             protected void publishResults(CharSequence constraint, FilterResults results) {
                 mCurFilterPrefix = constraint;
-                mEntries = (ArrayList<ApplicationsState.AppEntry>) results.values;
-                notifyDataSetChanged();
+                applyPrefixFilter();
             }
         };
 
@@ -751,6 +752,7 @@ public class ManageApplications extends InstrumentedFragment
             mContext = manageApplications.getActivity();
             mPm = mContext.getPackageManager();
             mFilterMode = filterMode;
+            mBgHandler = new Handler(mState.getBackgroundLooper());
             if (mManageApplications.mListType == LIST_TYPE_NOTIFICATION) {
                 mExtraInfoBridge = new AppStateNotificationBridge(mContext.getPackageManager(),
                         mState, this, manageApplications.mNotifBackend);
@@ -804,6 +806,8 @@ public class ManageApplications extends InstrumentedFragment
 
         public void release() {
             mSession.release();
+            mBgHandler.removeCallbacksAndMessages(null);
+            mFgHandler.removeCallbacksAndMessages(null);
             if (mExtraInfoBridge != null) {
                 mExtraInfoBridge.release();
             }
@@ -865,12 +869,7 @@ public class ManageApplications extends InstrumentedFragment
                 return;
             }
             mBaseEntries = entries;
-            if (mBaseEntries != null) {
-                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
-            } else {
-                mEntries = null;
-            }
-            notifyDataSetChanged();
+            applyPrefixFilter();
 
             if (mSession.getAllApps().size() != 0
                     && mManageApplications.mListContainer.getVisibility() != View.VISIBLE) {
@@ -891,24 +890,41 @@ public class ManageApplications extends InstrumentedFragment
                     mHasReceivedLoadEntries && mSession.getAllApps().size() != 0, false);
         }
 
-        ArrayList<ApplicationsState.AppEntry> applyPrefixFilter(CharSequence prefix,
-                ArrayList<ApplicationsState.AppEntry> origEntries) {
-            if (prefix == null || prefix.length() == 0) {
-                return origEntries;
-            } else {
-                String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
+        /**
+         * Show the entries of mBaseEntries with a word of their label starting with
+         * mCurFilterPrefix. The labels are indexed and searched on the background looper of
+         * ApplicationsState, which also loads them, and the index is only rebuilt when
+         * mBaseEntries changes.
+         */
+        private void applyPrefixFilter() {
+            final int generation = ++mFilterGeneration;
+            final CharSequence prefix = mCurFilterPrefix;
+            final ArrayList<ApplicationsState.AppEntry> baseEntries = mBaseEntries;
+            if (baseEntries == null || prefix == null || prefix.length() == 0) {
+                mEntries = baseEntries;
+                notifyDataSetChanged();
+                return;
+            }
+
+            mBgHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPrefixIndex == null || mPrefixIndex.getEntries() != baseEntries) {
+                        mPrefixIndex = AppPrefixIndex.forApps(baseEntries);
                     }
+                    final ArrayList<ApplicationsState.AppEntry> entries =
+                            mPrefixIndex.filter(prefix);
+                    mFgHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation == mFilterGeneration) {
+                                mEntries = entries;
+                                notifyDataSetChanged();
+                            }
+                        }
+                    });
                 }
-                return newEntries;
-            }
+            });
         }
 
         @Override
@@ -933,8 +949,7 @@ public class ManageApplications extends InstrumentedFragment
             mManageApplications.mListContainer.setVisibility(View.VISIBLE);
             mManageApplications.mLoadingContainer.setVisibility(View.GONE);
             mBaseEntries = apps;
-            mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
-            notifyDataSetChanged();
+            applyPrefixFilter();
         }
 
         @Override
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Persists the resolved dashboard categories, so that the dashboard can be shown on launch
+ * without parsing the categories, checking the features and querying the external tiles.
+ *
+ * The cached categories are only restored for the build fingerprint, locale, user profiles and
+ * Settings package they were built for, and while the packages of their tiles have not been
+ * updated or removed since. The caller still has to revalidate them, as newly installed
+ * packages can add tiles and the tiles also depend on the state of the device.
+ */
+public final class DashboardCategoriesCache {
+
+    private static final String LOG_TAG = "DashboardCategoriesCache";
+
+    private static final int CACHE_VERSION = 2;
+    private static final String CACHE_FILE_NAME = "dashboard_categories";
+
+    // The content of the cache file, to only write it when the categories change
+    private static byte[] sCachedCategories;
+
+    private DashboardCategoriesCache() {
+    }
+
+    /**
+     * Read the cached categories.
+     *
+     * @return the categories, or null if there are none or they are stale.
+     */
+    public static List<DashboardCategory> read(Context context) {
+        final byte[] data;
+        try {
+            data = getCacheFile(context).readFully();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot read the cached dashboard categories", e);
+            return null;
+        }
+
+        final String key = getCacheKey(context);
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            if (parcel.readInt() != CACHE_VERSION || !key.equals(parcel.readString())
+                    || !isPackagesUpToDate(context, parcel)) {
+                return null;
+            }
+            final ArrayList<DashboardCategory> categories = new ArrayList<DashboardCategory>();
+            parcel.readTypedList(categories, DashboardCategory.CREATOR);
+            synchronized (DashboardCategoriesCache.class) {
+                sCachedCategories = data;
+            }
+            return categories;
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Cannot restore the cached dashboard categories", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Write the categories to the cache, in the background. Nothing is written if the cache
+     * already contains the same categories.
+     */
+    public static void write(Context context, List<DashboardCategory> categories) {
+        final byte[] data = marshall(getCacheKey(context),
+                getPackageUpdateTimes(context, categories), categories);
+        if (data == null) {
+            return;
+        }
+        synchronized (DashboardCategoriesCache.class) {
+            if (Arrays.equals(data, sCachedCategories)) {
+                return;
+            }
+            sCachedCategories = data;
+        }
+
+        final AtomicFile file = getCacheFile(context);
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream out = null;
+                try {
+                    out = file.startWrite();
+                    out.write(data);
+                    file.finishWrite(out);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Cannot write the cached dashboard categories", e);
+                    if (out != null) {
+                        file.failWrite(out);
+                    }
+                    synchronized (DashboardCategoriesCache.class) {
+                        sCachedCategories = null;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether the two lists of categories would be restored as the same categories.
+     */
+    public static boolean isSame(List<DashboardCategory> first, List<DashboardCategory> second) {
+        final byte[] firstData = marshall(null, null, first);
+        return firstData != null && Arrays.equals(firstData, marshall(null, null, second));
+    }
+
+    private static byte[] marshall(String key, ArrayMap<String, Long> packages,
+            List<DashboardCategory> categories) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(CACHE_VERSION);
+            parcel.writeString(key);
+            final int count = (packages != null) ? packages.size() : 0;
+            parcel.writeInt(count);
+            for (int n = 0; n < count; n++) {
+                parcel.writeString(packages.keyAt(n));
+                parcel.writeLong(packages.valueAt(n));
+            }
+            parcel.writeTypedList(categories);
+            return parcel.marshall();
+        } catch (RuntimeException e) {
+            // Some tiles cannot be flattened, e.g. with binders in their extras
+            Log.w(LOG_TAG, "Cannot marshall the dashboard categories", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static String getCacheKey(Context context) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(Build.FINGERPRINT);
+        sb.append('|');
+        sb.append(context.getResources().getConfiguration().locale);
+        sb.append('|');
+        sb.append(UserHandle.myUserId());
+        for (UserHandle user : UserManager.get(context).getUserProfiles()) {
+            sb.append(',');
+            sb.append(user.getIdentifier());
+        }
+        sb.append('|');
+        try {
+            sb.append(context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime);
+        } catch (PackageManager.NameNotFoundException e) {
+            // Cannot happen for our own package
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the last update time of the packages the tiles come from, other than Settings.
+     */
+    private static ArrayMap<String, Long> getPackageUpdateTimes(Context context,
+            List<DashboardCategory> categories) {
+        final ArrayMap<String, Long> packages = new ArrayMap<String, Long>();
+        final PackageManager pm = context.getPackageManager();
+        final String ownPackage = context.getPackageName();
+        for (DashboardCategory category : categories) {
+            final int count = category.getTilesCount();
+            for (int n = 0; n < count; n++) {
+                final DashboardTile tile = category.getTile(n);
+                final ComponentName component =
+                        (tile.intent != null) ? tile.intent.getComponent() : null;
+                addPackage(pm, ownPackage, packages,
+                        (component != null) ? component.getPackageName() : null);
+                addPackage(pm, ownPackage, packages, tile.iconPkg);
+            }
+        }
+        return packages;
+    }
+
+    private static void addPackage(PackageManager pm, String ownPackage,
+            ArrayMap<String, Long> packages, String packageName) {
+        if (packageName == null || packageName.equals(ownPackage)
+                || packages.containsKey(packageName)) {
+            return;
+        }
+        packages.put(packageName, getLastUpdateTime(pm, packageName));
+    }
+
+    /**
+     * Check that the packages written by {@link #marshall} have not been updated or removed.
+     */
+    private static boolean isPackagesUpToDate(Context context, Parcel parcel) {
+        final PackageManager pm = context.getPackageManager();
+        final int count = parcel.readInt();
+        boolean upToDate = true;
+        for (int n = 0; n < count; n++) {
+            final String packageName = parcel.readString();
+            final long lastUpdateTime = parcel.readLong();
+            // Keep reading to leave the parcel after the packages
+            if (upToDate && getLastUpdateTime(pm, packageName) != lastUpdateTime) {
+                upToDate = false;
+            }
+        }
+        return upToDate;
+    }
+
+    // Returns -1 if the package is not installed
+    private static long getLastUpdateTime(PackageManager pm, String packageName) {
+        try {
+            return pm.getPackageInfo(packageName, 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return -1;
+        }
+    }
+
+    private static AtomicFile getCacheFile(Context context) {
+        return new AtomicFile(new File(context.getCacheDir(), CACHE_FILE_NAME));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the dashboard shows, with the titles, summaries and icons already resolved so that
+ * binding the views does not load any resource. Built in the background by
+ * {@link DashboardSummary}.
+ */
+final class DashboardModel {
+
+    private DashboardModel() {
+    }
+
+    static final class Category {
+        // Identifies the category across rebuilds
+        final String key;
+        final CharSequence title;
+        final List<Tile> tiles;
+
+        Category(String key, CharSequence title, List<Tile> tiles) {
+            this.key = key;
+            this.title = title;
+            this.tiles = Collections.unmodifiableList(tiles);
+        }
+    }
+
+    static final class Tile {
+        // Identifies the tile across rebuilds
+        final String key;
+        final DashboardTile tile;
+        final CharSequence title;
+        final CharSequence summary;
+        // Null if the tile has no icon
+        final Drawable icon;
+
+        Tile(String key, DashboardTile tile, CharSequence title, CharSequence summary,
+                Drawable icon) {
+            this.key = key;
+            this.tile = tile;
+            this.title = title;
+            this.summary = summary;
+            this.icon = icon;
+        }
+    }
+
+    /**
+     * Resolve a category, can be called from any thread.
+     *
+     * @param tintColor the color of the icons coming from outside Settings.
+     * @param packageVersions the versions of the packages of the icons, see
+     * {@link TileIconCache#getIcon}.
+     */
+    static Category resolve(Context context, DashboardCategory category, int tintColor,
+            Map<String, Long> packageVersions) {
+        final Resources res = context.getResources();
+        final int count = category.getTilesCount();
+        final List<Tile> tiles = new ArrayList<Tile>(count);
+        for (int n = 0; n < count; n++) {
+            final DashboardTile tile = category.getTile(n);
+            final CharSequence title = tile.getTitle(res);
+            final String key = getKey(tile, title);
+            // Show the last live summary of the tile until it is loaded again
+            CharSequence summary = TileSummaryLoader.getCachedSummary(key);
+            if (summary == null) {
+                summary = tile.getSummary(res);
+            }
+            tiles.add(new Tile(key, tile, title, summary, getIcon(context, tile, tintColor,
+                    packageVersions)));
+        }
+        final CharSequence title = category.getTitle(res);
+        return new Category((category.key != null) ? category.key : String.valueOf(title),
+                title, tiles);
+    }
+
+    private static String getKey(DashboardTile tile, CharSequence title) {
+        if (tile.id != DashboardTile.TILE_ID_UNDEFINED) {
+            return "id:" + tile.id;
+        }
+        if (tile.intent != null && tile.intent.getComponent() != null) {
+            return "intent:" + tile.intent.getComponent().flattenToShortString();
+        }
+        if (tile.fragment != null) {
+            return "fragment:" + tile.fragment;
+        }
+        return "title:" + title;
+    }
+
+    private static Drawable getIcon(Context context, DashboardTile tile, int tintColor,
+            Map<String, Long> packageVersions) {
+        if (!TextUtils.isEmpty(tile.iconPkg)) {
+            // If this drawable is coming from outside Settings, tint it to match the color.
+            final boolean tint = !tile.iconPkg.equals(context.getPackageName());
+            return TileIconCache.getIcon(context, packageVersions, tile.iconPkg, tile.iconRes,
+                    tint, tintColor);
+        } else if (tile.iconRes > 0) {
+            return context.getDrawable(tile.iconRes);
+        }
+        return null;
+    }
+}
@@ -20,12 +20,11 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.res.Resources;
-import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.TypedValue;
@@ -40,16 +39,32 @@ import android.widget.TextView;
 import com.android.internal.logging.MetricsLogger;
 import com.android.settings.HelpUtils;
 import com.android.settings.InstrumentedFragment;
+import com.android.settings.LaunchTrace;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DashboardSummary extends InstrumentedFragment {
     private static final String LOG_TAG = "DashboardSummary";
 
     private LayoutInflater mLayoutInflater;
     private ViewGroup mDashboard;
+    private RebuildUITask mRebuildUITask;
+    // The categories bound to the views
+    private List<DashboardModel.Category> mBoundCategories;
+
+    private final TileSummaryLoader mSummaryLoader = new TileSummaryLoader();
+    private FragmentPrewarmer mPrewarmer;
+    private final TileSummaryLoader.Callback mSummaryCallback = new TileSummaryLoader.Callback() {
+        @Override
+        public void onSummaryLoaded(String key, CharSequence summary) {
+            updateTileSummary(key, summary);
+        }
+    };
 
     private static final int MSG_REBUILD_UI = 1;
     private Handler mHandler = new Handler() {
@@ -67,6 +82,9 @@ public class DashboardSummary extends InstrumentedFragment {
     private class HomePackageReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
+            if (intent.getData() != null) {
+                TileIconCache.invalidate(intent.getData().getSchemeSpecificPart());
+            }
             rebuildUI(context);
         }
     }
@@ -110,6 +128,8 @@ public class DashboardSummary extends InstrumentedFragment {
         super.onPause();
 
         getActivity().unregisterReceiver(mHomePackageReceiver);
+        mSummaryLoader.cancel();
+        mPrewarmer.cancel();
     }
 
     @Override
@@ -117,6 +137,7 @@ public class DashboardSummary extends InstrumentedFragment {
                              Bundle savedInstanceState) {
 
         mLayoutInflater = inflater;
+        mPrewarmer = new FragmentPrewarmer(getActivity());
 
         final View rootView = inflater.inflate(R.layout.dashboard, container, false);
         mDashboard = (ViewGroup) rootView.findViewById(R.id.dashboard_container);
@@ -124,86 +145,281 @@ public class DashboardSummary extends InstrumentedFragment {
         return rootView;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+
+        if (mRebuildUITask != null) {
+            mRebuildUITask.cancel(false);
+            mRebuildUITask = null;
+        }
+        mSummaryLoader.cancel();
+        mBoundCategories = null;
+        mDashboard = null;
+    }
+
+    /**
+     * Rebuild the categories and refresh the dashboard.
+     */
+    public void refresh() {
+        sendRebuildUI();
+    }
+
     private void rebuildUI(Context context) {
         if (!isAdded()) {
             Log.w(LOG_TAG, "Cannot build the DashboardSummary UI yet as the Fragment is not added");
             return;
         }
 
-        long start = System.currentTimeMillis();
-        final Resources res = getResources();
+        if (mRebuildUITask != null) {
+            mRebuildUITask.cancel(false);
+        }
+        LaunchTrace.beginAsync(LaunchTrace.PHASE_REBUILD_UI);
+        mRebuildUITask = new RebuildUITask((SettingsActivity) context);
+        mRebuildUITask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * The categories to show, possibly only the first ones.
+     */
+    private static final class CategoriesUpdate {
+        final List<DashboardModel.Category> categories;
+        final boolean complete;
+
+        CategoriesUpdate(List<DashboardModel.Category> categories, boolean complete) {
+            this.categories = categories;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * Builds the categories and resolves their tiles in the background, the main thread only
+     * binds the views. The first category is shown as soon as it is resolved.
+     *
+     * The categories already shown, or else the ones cached by a previous launch, are shown
+     * while the categories are rebuilt, and only replaced if they changed.
+     */
+    private class RebuildUITask extends AsyncTask<Void, CategoriesUpdate, List<DashboardCategory>> {
+        private final SettingsActivity mActivity;
+        private final List<DashboardCategory> mShownCategories;
+        private final boolean mDashboardShown;
+        private final int mTintColor;
+        private final long mStartTime = SystemClock.elapsedRealtime();
+        // Looked up once per rebuild, for the icons coming from other packages
+        private final Map<String, Long> mPackageVersions = new HashMap<String, Long>();
+
+        RebuildUITask(SettingsActivity activity) {
+            mActivity = activity;
+            mShownCategories = new ArrayList<DashboardCategory>(activity.getDashboardCategories());
+            mDashboardShown = mDashboard.getChildCount() > 0;
+
+            final TypedValue tintColor = new TypedValue();
+            activity.getTheme().resolveAttribute(com.android.internal.R.attr.colorAccent,
+                    tintColor, true);
+            mTintColor = tintColor.data;
+        }
+
+        @Override
+        protected List<DashboardCategory> doInBackground(Void... params) {
+            boolean shown = mDashboardShown;
+            // Restored from the cache by the activity when the dashboard has not been built yet
+            final List<DashboardCategory> previous =
+                    mShownCategories.isEmpty() ? null : mShownCategories;
+            if (previous != null && !shown) {
+                publishCategories(previous);
+                shown = true;
+            }
+            if (isCancelled()) {
+                return null;
+            }
+
+            final List<DashboardCategory> categories = mActivity.buildDashboardCategories();
+            if (shown && previous != null
+                    && DashboardCategoriesCache.isSame(previous, categories)) {
+                return previous;
+            }
+            publishCategories(categories);
+            return categories;
+        }
 
-        mDashboard.removeAllViews();
+        private void publishCategories(List<DashboardCategory> categories) {
+            final int count = categories.size();
+            final List<DashboardModel.Category> resolved =
+                    new ArrayList<DashboardModel.Category>(count);
+            for (int n = 0; n < count && !isCancelled(); n++) {
+                resolved.add(DashboardModel.resolve(mActivity, categories.get(n), mTintColor,
+                        mPackageVersions));
+                if (n == 0 && count > 1) {
+                    publishProgress(new CategoriesUpdate(
+                            new ArrayList<DashboardModel.Category>(resolved), false));
+                }
+            }
+            if (!isCancelled()) {
+                publishProgress(new CategoriesUpdate(resolved, true));
+            }
+        }
 
-        List<DashboardCategory> categories =
-                ((SettingsActivity) context).getDashboardCategories(true);
+        @Override
+        protected void onProgressUpdate(CategoriesUpdate... updates) {
+            if (isCancelled() || !isAdded()) {
+                return;
+            }
+            for (CategoriesUpdate update : updates) {
+                bindCategories(update.categories, update.complete);
+            }
+        }
 
+        @Override
+        protected void onPostExecute(List<DashboardCategory> categories) {
+            if (mRebuildUITask == this) {
+                mRebuildUITask = null;
+            }
+            if (categories == null || !isAdded()) {
+                return;
+            }
+            mActivity.setDashboardCategories(categories);
+            LaunchTrace.endAsync(LaunchTrace.PHASE_REBUILD_UI);
+            if (mBoundCategories != null && isResumed()) {
+                mSummaryLoader.load(mActivity, mBoundCategories, mSummaryCallback);
+                // The most opened screens are prewarmed once the dashboard is shown
+                mPrewarmer.prewarmWhenIdle();
+            }
+
+            long delta = SystemClock.elapsedRealtime() - mStartTime;
+            Log.d(LOG_TAG, "rebuildUI took: " + delta + " ms");
+        }
+    }
+
+    /**
+     * Bind the categories to the views. The views are matched to the categories and tiles by
+     * key, so that the existing views are updated in place and only the added categories and
+     * tiles are inflated.
+     *
+     * @param complete false if only the first categories are bound, the views of the next
+     * ones are then kept until they are bound.
+     */
+    private void bindCategories(List<DashboardModel.Category> categories, boolean complete) {
         final int count = categories.size();
 
+        final Map<String, View> categoryViews = new HashMap<String, View>();
+        for (int n = mDashboard.getChildCount() - 1; n >= 0; n--) {
+            final View view = mDashboard.getChildAt(n);
+            categoryViews.put((String) view.getTag(), view);
+        }
+
         for (int n = 0; n < count; n++) {
-            DashboardCategory category = categories.get(n);
+            DashboardModel.Category category = categories.get(n);
 
-            View categoryView = mLayoutInflater.inflate(R.layout.dashboard_category, mDashboard,
-                    false);
+            View categoryView = categoryViews.remove(category.key);
+            if (categoryView == null) {
+                categoryView = mLayoutInflater.inflate(R.layout.dashboard_category, mDashboard,
+                        false);
+                categoryView.setTag(category.key);
+            }
+            bindCategory(categoryView, category);
+            moveView(mDashboard, categoryView, n);
+        }
 
-            TextView categoryLabel = (TextView) categoryView.findViewById(R.id.category_title);
-            categoryLabel.setText(category.getTitle(res));
+        // The views left after the bound ones are the ones of the removed categories
+        if (complete && mDashboard.getChildCount() > count) {
+            mDashboard.removeViews(count, mDashboard.getChildCount() - count);
+        }
+        if (complete) {
+            mBoundCategories = categories;
+        }
+    }
 
-            ViewGroup categoryContent =
-                    (ViewGroup) categoryView.findViewById(R.id.category_content);
+    /**
+     * Show the live summary of a tile, see {@link TileSummaryLoader}. Without a live summary,
+     * the tile shows its own summary again, if any.
+     */
+    private void updateTileSummary(String key, CharSequence summary) {
+        if (mDashboard == null) {
+            return;
+        }
+        final int count = mDashboard.getChildCount();
+        for (int n = 0; n < count; n++) {
+            final ViewGroup categoryContent = (ViewGroup)
+                    mDashboard.getChildAt(n).findViewById(R.id.category_content);
+            final View view = categoryContent.findViewWithTag(key);
+            if (view instanceof DashboardTileView) {
+                final DashboardTileView tileView = (DashboardTileView) view;
+                final CharSequence text = (summary != null) ?
+                        summary : tileView.getTile().getSummary(getResources());
+                final TextView statusTextView = tileView.getStatusTextView();
+                if (!TextUtils.isEmpty(text)) {
+                    statusTextView.setVisibility(View.VISIBLE);
+                    statusTextView.setText(text);
+                } else {
+                    statusTextView.setVisibility(View.GONE);
+                }
+                return;
+            }
+        }
+    }
 
-            final int tilesCount = category.getTilesCount();
-            for (int i = 0; i < tilesCount; i++) {
-                DashboardTile tile = category.getTile(i);
+    private void bindCategory(View categoryView, DashboardModel.Category category) {
+        final Context context = getActivity();
 
-                DashboardTileView tileView = new DashboardTileView(context);
-                updateTileView(context, res, tile, tileView.getImageView(),
-                        tileView.getTitleTextView(), tileView.getStatusTextView());
+        TextView categoryLabel = (TextView) categoryView.findViewById(R.id.category_title);
+        categoryLabel.setText(category.title);
 
-                tileView.setTile(tile);
+        ViewGroup categoryContent =
+                (ViewGroup) categoryView.findViewById(R.id.category_content);
 
-                categoryContent.addView(tileView);
+        final Map<String, View> tileViews = new HashMap<String, View>();
+        for (int n = categoryContent.getChildCount() - 1; n >= 0; n--) {
+            final View view = categoryContent.getChildAt(n);
+            tileViews.put((String) view.getTag(), view);
+        }
+
+        final int tilesCount = category.tiles.size();
+        for (int i = 0; i < tilesCount; i++) {
+            DashboardModel.Tile tile = category.tiles.get(i);
+
+            DashboardTileView tileView = (DashboardTileView) tileViews.remove(tile.key);
+            if (tileView == null) {
+                tileView = new DashboardTileView(context);
+                tileView.setTag(tile.key);
             }
+            updateTileView(tile, tileView.getImageView(),
+                    tileView.getTitleTextView(), tileView.getStatusTextView());
 
-            // Add the category
-            mDashboard.addView(categoryView);
+            tileView.setTile(tile.tile);
+
+            moveView(categoryContent, tileView, i);
         }
-        long delta = System.currentTimeMillis() - start;
-        Log.d(LOG_TAG, "rebuildUI took: " + delta + " ms");
+
+        if (categoryContent.getChildCount() > tilesCount) {
+            categoryContent.removeViews(tilesCount, categoryContent.getChildCount() - tilesCount);
+        }
+    }
+
+    private static void moveView(ViewGroup parent, View view, int position) {
+        if (parent.getChildAt(position) == view) {
+            return;
+        }
+        if (view.getParent() == parent) {
+            parent.removeView(view);
+        }
+        parent.addView(view, position);
     }
 
-    private void updateTileView(Context context, Resources res, DashboardTile tile,
-            ImageView tileIcon, TextView tileTextView, TextView statusTextView) {
+    private void updateTileView(DashboardModel.Tile tile, ImageView tileIcon,
+            TextView tileTextView, TextView statusTextView) {
 
-        if (!TextUtils.isEmpty(tile.iconPkg)) {
-            try {
-                Drawable drawable = context.getPackageManager()
-                        .getResourcesForApplication(tile.iconPkg).getDrawable(tile.iconRes, null);
-                if (!tile.iconPkg.equals(context.getPackageName()) && drawable != null) {
-                    // If this drawable is coming from outside Settings, tint it to match the color.
-                    TypedValue tintColor = new TypedValue();
-                    context.getTheme().resolveAttribute(com.android.internal.R.attr.colorAccent,
-                            tintColor, true);
-                    drawable.setTint(tintColor.data);
-                }
-                tileIcon.setImageDrawable(drawable);
-            } catch (NameNotFoundException | Resources.NotFoundException e) {
-                tileIcon.setImageDrawable(null);
-                tileIcon.setBackground(null);
-            }
-        } else if (tile.iconRes > 0) {
-            tileIcon.setImageResource(tile.iconRes);
+        if (tile.icon != null) {
+            tileIcon.setImageDrawable(tile.icon);
         } else {
             tileIcon.setImageDrawable(null);
             tileIcon.setBackground(null);
         }
 
-        tileTextView.setText(tile.getTitle(res));
+        tileTextView.setText(tile.title);
 
-        CharSequence summary = tile.getSummary(res);
-        if (!TextUtils.isEmpty(summary)) {
+        if (!TextUtils.isEmpty(tile.summary)) {
             statusTextView.setVisibility(View.VISIBLE);
-            statusTextView.setText(summary);
+            statusTextView.setText(tile.summary);
         } else {
             statusTextView.setVisibility(View.GONE);
         }
@@ -73,6 +73,10 @@ public class DashboardTileView extends FrameLayout implements View.OnClickListen
         return mImageView;
     }
 
+    public DashboardTile getTile() {
+        return mTile;
+    }
+
     public void setTile(DashboardTile tile) {
         mTile = tile;
     }
@@ -92,6 +96,7 @@ public class DashboardTileView extends FrameLayout implements View.OnClickListen
     @Override
     public void onClick(View v) {
         if (mTile.fragment != null) {
+            FragmentPrewarmer.recordNavigation(getContext(), mTile.fragment);
             Utils.startWithFragment(getContext(), mTile.fragment, mTile.fragmentArguments, null, 0,
                     mTile.titleRes, mTile.getTitle(getResources()));
         } else if (mTile.intent != null) {
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.os.AsyncTask;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.provider.SearchIndexableResource;
+import android.util.Log;
+
+import com.android.settings.PreferenceXmlCache;
+import com.android.settings.search.Index;
+import com.android.settings.search.Indexable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Prewarms the fragments the user opens the most from the dashboard, so that opening them
+ * does not pay for loading their classes and parsing their preference XML.
+ *
+ * The number of times each fragment is opened from a tile is kept in the preferences of the
+ * current user. When the dashboard is idle, the most opened fragments get their classes loaded
+ * and initialized, their search provider resolved and their preference XML parsed into
+ * {@link PreferenceXmlCache}, on a background thread. Prewarming stops when the system is
+ * running low on memory.
+ */
+final class FragmentPrewarmer implements ComponentCallbacks2 {
+
+    private static final String LOG_TAG = "FragmentPrewarmer";
+
+    private static final String PREFS_NAME = "fragment_navigation";
+
+    // Number of fragments prewarmed
+    private static final int MAX_PREWARMED_FRAGMENTS = 3;
+
+    // Fragments prewarmed by this process
+    private static final Set<String> sPrewarmed = new HashSet<String>();
+
+    private final Context mContext;
+    private PrewarmTask mPrewarmTask;
+    private boolean mIdleHandlerQueued;
+
+    private final MessageQueue.IdleHandler mIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            mIdleHandlerQueued = false;
+            startPrewarm();
+            return false;
+        }
+    };
+
+    FragmentPrewarmer(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Record that a fragment has been opened from the dashboard.
+     */
+    static void recordNavigation(Context context, String fragmentName) {
+        final SharedPreferences prefs =
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putInt(fragmentName, prefs.getInt(fragmentName, 0) + 1).apply();
+    }
+
+    /**
+     * Prewarm the most opened fragments once the main thread is idle. Must be called from the
+     * main thread.
+     */
+    void prewarmWhenIdle() {
+        if (mIdleHandlerQueued || mPrewarmTask != null) {
+            return;
+        }
+        final ActivityManager am =
+                (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am.isLowRamDevice()) {
+            return;
+        }
+        Looper.myQueue().addIdleHandler(mIdleHandler);
+        mIdleHandlerQueued = true;
+    }
+
+    /**
+     * Cancel the prewarming. Must be called from the main thread.
+     */
+    void cancel() {
+        if (mIdleHandlerQueued) {
+            Looper.myQueue().removeIdleHandler(mIdleHandler);
+            mIdleHandlerQueued = false;
+        }
+        if (mPrewarmTask != null) {
+            mPrewarmTask.cancel(false);
+            mPrewarmTask = null;
+            mContext.unregisterComponentCallbacks(this);
+        }
+    }
+
+    private void startPrewarm() {
+        final List<String> fragments = getMostOpenedFragments();
+        if (fragments.isEmpty()) {
+            return;
+        }
+        mContext.registerComponentCallbacks(this);
+        mPrewarmTask = new PrewarmTask();
+        mPrewarmTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+                fragments.toArray(new String[fragments.size()]));
+    }
+
+    private List<String> getMostOpenedFragments() {
+        final Map<String, ?> counts =
+                mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getAll();
+        final List<Map.Entry<String, ?>> entries = new ArrayList<Map.Entry<String, ?>>();
+        for (Map.Entry<String, ?> entry : counts.entrySet()) {
+            if (entry.getValue() instanceof Integer) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, ?>>() {
+            @Override
+            public int compare(Map.Entry<String, ?> lhs, Map.Entry<String, ?> rhs) {
+                return ((Integer) rhs.getValue()).compareTo((Integer) lhs.getValue());
+            }
+        });
+
+        final List<String> result = new ArrayList<String>(MAX_PREWARMED_FRAGMENTS);
+        synchronized (sPrewarmed) {
+            for (Map.Entry<String, ?> entry : entries) {
+                if (result.size() >= MAX_PREWARMED_FRAGMENTS) {
+                    break;
+                }
+                if (!sPrewarmed.contains(entry.getKey())) {
+                    result.add(entry.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            Log.d(LOG_TAG, "Cancel prewarming, trim memory level " + level);
+            cancel();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        cancel();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private class PrewarmTask extends AsyncTask<String, Void, Void> {
+
+        @Override
+        protected Void doInBackground(String... fragments) {
+            for (String fragment : fragments) {
+                if (isCancelled()) {
+                    break;
+                }
+                prewarm(fragment);
+                synchronized (sPrewarmed) {
+                    sPrewarmed.add(fragment);
+                }
+            }
+            return null;
+        }
+
+        private void prewarm(String fragmentName) {
+            try {
+                Class.forName(fragmentName, true, mContext.getClassLoader());
+            } catch (ClassNotFoundException | LinkageError e) {
+                Log.w(LOG_TAG, "Cannot load fragment " + fragmentName, e);
+                return;
+            }
+
+            final Indexable.SearchIndexProvider provider =
+                    Index.getSearchIndexProvider(fragmentName);
+            if (provider == null) {
+                return;
+            }
+            final List<SearchIndexableResource> resources =
+                    provider.getXmlResourcesToIndex(mContext, true);
+            if (resources == null) {
+                return;
+            }
+            for (SearchIndexableResource resource : resources) {
+                if (isCancelled()) {
+                    return;
+                }
+                if (resource.xmlResId != 0) {
+                    PreferenceXmlCache.preload(mContext, resource.xmlResId);
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Void aVoid) {
+            if (mPrewarmTask == this) {
+                mPrewarmTask = null;
+                mContext.unregisterComponentCallbacks(FragmentPrewarmer.this);
+            }
+        }
+    }
+}
@@ -25,6 +25,10 @@ import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Message;
+import android.os.OperationCanceledException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -44,6 +48,7 @@ import com.android.settings.Utils;
 import com.android.settings.search.Index;
 
 import java.util.HashMap;
+import java.util.List;
 
 public class SearchResultsSummary extends InstrumentedFragment {
 
@@ -54,6 +59,8 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     private static final String SAVE_KEY_SHOW_RESULTS = ":settings:show_results";
 
+    private static final int MSG_UPDATE_SEARCH_RESULTS = 1;
+
     private SearchView mSearchView;
 
     private ListView mResultsListView;
@@ -71,24 +78,79 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     private boolean mShowResults;
 
+    // The last complete search results, used for refining the results of the next query
+    private String mLastResultsQuery;
+    private List<Object[]> mLastResults;
+
+    private int mSearchDelayMillis;
+
+    // Search results are only updated once the query has not changed for mSearchDelayMillis
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_UPDATE_SEARCH_RESULTS: {
+                    startSearchResultsTask((String) msg.obj);
+                } break;
+            }
+        }
+    };
+
     /**
-     * A basic AsyncTask for updating the query results cursor
+     * A basic AsyncTask for updating the query results cursor. Results are either refined from
+     * the previous ones or queried from the Index.
      */
-    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+    private class UpdateSearchResultsTask extends AsyncTask<String, Void, List<Object[]>> {
+        private final Index mIndex;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+        private final String mPreviousQuery;
+        private final List<Object[]> mPreviousResults;
+        private String mTaskQuery;
+
+        public UpdateSearchResultsTask(Index index, String previousQuery,
+                List<Object[]> previousResults) {
+            mIndex = index;
+            mPreviousQuery = previousQuery;
+            mPreviousResults = previousResults;
+        }
+
+        public void cancelQuery() {
+            cancel(false);
+            mCancellationSignal.cancel();
+        }
+
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
+        protected List<Object[]> doInBackground(String... params) {
+            mTaskQuery = params[0];
+            try {
+                if (mPreviousResults != null && Index.isRefinement(mPreviousQuery, mTaskQuery)) {
+                    final List<Object[]> results = Index.refineSearchResults(mPreviousResults,
+                            mTaskQuery, mCancellationSignal);
+                    // Without results, let the Index look for near matches of the query
+                    if (!results.isEmpty()) {
+                        return results;
+                    }
+                }
+                final Cursor cursor = mIndex.search(mTaskQuery, mCancellationSignal);
+                try {
+                    return Index.copySearchResults(cursor);
+                } finally {
+                    cursor.close();
+                }
+            } catch (OperationCanceledException e) {
+                return null;
+            }
         }
 
         @Override
-        protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
+        protected void onPostExecute(List<Object[]> results) {
+            if (!isCancelled() && results != null) {
+                mLastResultsQuery = mTaskQuery;
+                mLastResults = results;
                 MetricsLogger.action(getContext(), MetricsLogger.ACTION_SEARCH_RESULTS,
-                        cursor.getCount());
-                setResultsCursor(cursor);
-                setResultsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
+                        results.size());
+                setResultsCursor(Index.newSearchResultsCursor(results));
+                setResultsVisibility(results.size() > 0);
             }
         }
     }
@@ -97,20 +159,50 @@ public class SearchResultsSummary extends InstrumentedFragment {
      * A basic AsyncTask for updating the suggestions cursor
      */
     private class UpdateSuggestionsTask extends AsyncTask<String, Void, Cursor> {
+        private final Index mIndex;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        public UpdateSuggestionsTask(Index index) {
+            mIndex = index;
+        }
+
+        public void cancelQuery() {
+            cancel(false);
+            mCancellationSignal.cancel();
+        }
+
         @Override
         protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).getSuggestions(params[0]);
+            Cursor cursor = null;
+            try {
+                cursor = mIndex.getSuggestions(params[0], mCancellationSignal);
+                // Run the query now rather than on the UI thread
+                cursor.getCount();
+                return cursor;
+            } catch (OperationCanceledException e) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return null;
+            }
         }
 
         @Override
         protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
+            if (!isCancelled() && cursor != null) {
                 setSuggestionsCursor(cursor);
                 setSuggestionsVisibility(cursor.getCount() > 0);
             } else if (cursor != null) {
                 cursor.close();
             }
         }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
     }
 
     @Override
@@ -119,6 +211,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
         mResultsAdapter = new SearchResultsAdapter(getActivity());
         mSuggestionsAdapter = new SuggestionsAdapter(getActivity());
+        mSearchDelayMillis = getResources().getInteger(R.integer.config_search_delay_millis);
 
         if (savedInstanceState != null) {
             mShowResults = savedInstanceState.getBoolean(SAVE_KEY_SHOW_RESULTS);
@@ -142,6 +235,8 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     @Override
     public void onDestroy() {
+        mHandler.removeCallbacksAndMessages(null);
+
         mResultsListView = null;
         mResultsAdapter = null;
         mUpdateSearchResultsTask = null;
@@ -186,6 +281,8 @@ public class SearchResultsSummary extends InstrumentedFragment {
                 final String action = cursor.getString(Index.COLUMN_INDEX_INTENT_ACTION);
                 final String key = cursor.getString(Index.COLUMN_INDEX_KEY);
 
+                Index.getInstance(getActivity()).addSearchResultClick(className, key);
+
                 final SettingsActivity sa = (SettingsActivity) getActivity();
                 sa.needToRevertToInitialFragment();
 
@@ -285,7 +382,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
         mQuery = getFilteredQueryString(query);
         mShowResults = true;
         setSuggestionsVisibility(false);
-        updateSearchResults();
+        updateSearchResults(0);
         saveQueryToDatabase();
 
         return false;
@@ -303,7 +400,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
         } else {
             mShowResults = true;
             setSuggestionsVisibility(false);
-            updateSearchResults();
+            updateSearchResults(mSearchDelayMillis);
         }
 
         return true;
@@ -317,7 +414,7 @@ public class SearchResultsSummary extends InstrumentedFragment {
 
     private void clearSuggestions() {
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.cancelQuery();
             mUpdateSuggestionsTask = null;
         }
         setSuggestionsCursor(null);
@@ -334,10 +431,13 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearResults() {
+        mHandler.removeMessages(MSG_UPDATE_SEARCH_RESULTS);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
+        mLastResultsQuery = null;
+        mLastResults = null;
         setResultsCursor(null);
     }
 
@@ -367,12 +467,13 @@ public class SearchResultsSummary extends InstrumentedFragment {
     }
 
     private void clearAllTasks() {
+        mHandler.removeMessages(MSG_UPDATE_SEARCH_RESULTS);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.cancelQuery();
             mUpdateSuggestionsTask = null;
         }
     }
@@ -382,20 +483,34 @@ public class SearchResultsSummary extends InstrumentedFragment {
         if (mQuery == null) {
             setSuggestionsCursor(null);
         } else {
-            mUpdateSuggestionsTask = new UpdateSuggestionsTask();
-            mUpdateSuggestionsTask.execute(mQuery);
+            mUpdateSuggestionsTask = new UpdateSuggestionsTask(Index.getInstance(getActivity()));
+            mUpdateSuggestionsTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, mQuery);
         }
     }
 
-    private void updateSearchResults() {
+    /**
+     * Update the search results once the query has not changed for some time. Only the latest
+     * query is run: previous ones are cancelled, even if they are already running.
+     */
+    private void updateSearchResults(long delayMillis) {
         clearAllTasks();
         if (TextUtils.isEmpty(mQuery)) {
             setResultsVisibility(false);
             setResultsCursor(null);
         } else {
-            mUpdateSearchResultsTask = new UpdateSearchResultsTask();
-            mUpdateSearchResultsTask.execute(mQuery);
+            mHandler.sendMessageDelayed(
+                    mHandler.obtainMessage(MSG_UPDATE_SEARCH_RESULTS, mQuery), delayMillis);
+        }
+    }
+
+    private void startSearchResultsTask(String query) {
+        if (getActivity() == null) {
+            return;
         }
+        mUpdateSearchResultsTask = new UpdateSearchResultsTask(Index.getInstance(getActivity()),
+                mLastResultsQuery, mLastResults);
+        // Cancelled tasks stop as soon as possible, so there is no need for a serial executor
+        mUpdateSearchResultsTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, query);
     }
 
     private static class SuggestionItem {
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * Process wide cache of the tile icons coming from other packages, already tinted.
+ *
+ * The icons are kept as constant states, so that every tile view gets its own drawable, and
+ * are keyed by package, last update time of the package, resource id and tint. The update
+ * times are looked up again by every rebuild of the dashboard, so an updated package never
+ * gets its old icons. The icons of a package are also dropped when the dashboard sees it
+ * being updated or removed, see {@link #invalidate(String)}.
+ */
+final class TileIconCache {
+
+    // Approximate memory budget of the icons, their bitmaps are counted as ARGB_8888
+    private static final int MAX_SIZE_BYTES = 2 * 1024 * 1024;
+
+    private static final LruCache<String, Drawable.ConstantState> sIcons =
+            new LruCache<String, Drawable.ConstantState>(MAX_SIZE_BYTES) {
+                @Override
+                protected int sizeOf(String key, Drawable.ConstantState icon) {
+                    final Drawable drawable = icon.newDrawable();
+                    final int width = Math.max(drawable.getIntrinsicWidth(), 1);
+                    final int height = Math.max(drawable.getIntrinsicHeight(), 1);
+                    return width * height * 4;
+                }
+            };
+
+    private TileIconCache() {
+    }
+
+    /**
+     * Get the icon of a tile from another package, can be called from any thread.
+     *
+     * @param versions the last update times of the packages looked up by the current rebuild of
+     * the dashboard, by package name. Filled by this method, it is not thread safe.
+     * @param tint whether to tint the icon with the tint color.
+     * @return the icon, or null if it cannot be loaded.
+     */
+    static Drawable getIcon(Context context, Map<String, Long> versions, String packageName,
+            int resId, boolean tint, int tintColor) {
+        final Long version = getVersion(context, versions, packageName);
+        if (version == null) {
+            return null;
+        }
+
+        final String key = getKey(packageName, version, resId, tint, tintColor);
+        final Drawable.ConstantState cached = sIcons.get(key);
+        if (cached != null) {
+            return cached.newDrawable();
+        }
+
+        Drawable drawable;
+        try {
+            drawable = context.getPackageManager().getResourcesForApplication(packageName)
+                    .getDrawable(resId, null);
+        } catch (NameNotFoundException | Resources.NotFoundException e) {
+            return null;
+        }
+        if (drawable == null) {
+            return null;
+        }
+        if (tint) {
+            drawable = drawable.mutate();
+            drawable.setTint(tintColor);
+        }
+
+        final Drawable.ConstantState state = drawable.getConstantState();
+        if (state != null) {
+            sIcons.put(key, state);
+        }
+        return drawable;
+    }
+
+    /**
+     * Drop the icons of a package, when it is updated or removed.
+     */
+    static void invalidate(String packageName) {
+        final String prefix = packageName + '/';
+        for (String key : sIcons.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                sIcons.remove(key);
+            }
+        }
+    }
+
+    private static Long getVersion(Context context, Map<String, Long> versions,
+            String packageName) {
+        if (versions.containsKey(packageName)) {
+            return versions.get(packageName);
+        }
+        Long version;
+        try {
+            version = context.getPackageManager().getPackageInfo(packageName, 0).lastUpdateTime;
+        } catch (NameNotFoundException e) {
+            version = null;
+        }
+        versions.put(packageName, version);
+        return version;
+    }
+
+    private static String getKey(String packageName, long version, int resId, boolean tint,
+            int tintColor) {
+        final StringBuilder sb = new StringBuilder(packageName);
+        sb.append('/');
+        sb.append(version);
+        sb.append('/');
+        sb.append(resId);
+        if (tint) {
+            sb.append('/');
+            sb.append(Integer.toHexString(tintColor));
+        }
+        return sb.toString();
+    }
+}
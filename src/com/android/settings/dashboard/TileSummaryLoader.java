@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.settings.R;
+import com.android.settings.Utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the live summaries of the dashboard tiles with a {@link TileSummaryProvider}.
+ *
+ * The summaries are computed in parallel on background threads and pushed to the
+ * {@link Callback} on the main thread as they complete. A summary taking more than
+ * SUMMARY_TIMEOUT_MILLIS is cancelled. The summaries are cached for the TTL of their provider,
+ * so that the dashboard shows them right away when it is rebuilt.
+ */
+final class TileSummaryLoader {
+
+    private static final String LOG_TAG = "TileSummaryLoader";
+
+    private static final int MAX_THREADS = 3;
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 10;
+
+    // Time given to each provider to compute its summary
+    private static final long SUMMARY_TIMEOUT_MILLIS = 1000;
+
+    interface Callback {
+        /**
+         * Called on the main thread when the summary of a tile has been computed.
+         *
+         * @param summary the live summary, or null if the tile has none right now.
+         */
+        void onSummaryLoaded(String key, CharSequence summary);
+    }
+
+    private static final class CachedSummary {
+        final CharSequence summary;
+        final long expiryTime;
+
+        CachedSummary(CharSequence summary, long expiryTime) {
+            this.summary = summary;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    // Providers by tile id
+    private static final Map<Long, TileSummaryProvider> sProviders =
+            new HashMap<Long, TileSummaryProvider>();
+    // Summaries by tile key, see DashboardModel.Tile
+    private static final Map<String, CachedSummary> sSummaries =
+            new HashMap<String, CachedSummary>();
+    private static ExecutorService sExecutor;
+
+    static {
+        sProviders.put((long) R.id.wifi_settings, new WifiSummaryProvider());
+        sProviders.put((long) R.id.battery_settings, new BatterySummaryProvider());
+    }
+
+    private final Handler mHandler = new Handler();
+    private final List<Future<?>> mFutures = new ArrayList<Future<?>>();
+    // Incremented when the pending summaries are cancelled, to drop their results
+    private int mGeneration;
+
+    /**
+     * Get the summary of a tile computed less than the TTL of its provider ago.
+     *
+     * @return the summary, or null if there is none.
+     */
+    static CharSequence getCachedSummary(String key) {
+        synchronized (sSummaries) {
+            final CachedSummary cached = sSummaries.get(key);
+            if (cached == null || cached.expiryTime < SystemClock.elapsedRealtime()) {
+                return null;
+            }
+            return cached.summary;
+        }
+    }
+
+    /**
+     * Load the summaries of the tiles which have no cached summary, cancelling the ones being
+     * loaded. Must be called from the main thread.
+     */
+    void load(Context context, List<DashboardModel.Category> categories,
+            final Callback callback) {
+        cancel();
+
+        final Context appContext = context.getApplicationContext();
+        final int generation = mGeneration;
+        for (DashboardModel.Category category : categories) {
+            for (DashboardModel.Tile tile : category.tiles) {
+                final TileSummaryProvider provider = sProviders.get(tile.tile.id);
+                if (provider == null) {
+                    continue;
+                }
+                final String key = tile.key;
+                synchronized (sSummaries) {
+                    final CachedSummary cached = sSummaries.get(key);
+                    if (cached != null && cached.expiryTime >= SystemClock.elapsedRealtime()) {
+                        continue;
+                    }
+                }
+
+                final Future<?> future = getExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        final CharSequence summary;
+                        try {
+                            summary = provider.getSummary(appContext);
+                        } catch (RuntimeException e) {
+                            Log.w(LOG_TAG, "Cannot get the summary of tile " + key, e);
+                            return;
+                        }
+                        synchronized (sSummaries) {
+                            sSummaries.put(key, new CachedSummary(summary,
+                                    SystemClock.elapsedRealtime() + provider.getTtlMillis()));
+                        }
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (generation == mGeneration) {
+                                    callback.onSummaryLoaded(key, summary);
+                                }
+                            }
+                        });
+                    }
+                });
+                mFutures.add(future);
+
+                mHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!future.isDone()) {
+                            Log.w(LOG_TAG, "Timed out getting the summary of tile " + key);
+                            future.cancel(true);
+                        }
+                    }
+                }, SUMMARY_TIMEOUT_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Cancel the summaries being loaded, their results are dropped.
+     */
+    void cancel() {
+        mGeneration++;
+        for (Future<?> future : mFutures) {
+            future.cancel(true);
+        }
+        mFutures.clear();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                    THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Shows the name of the connected Wi-Fi network.
+     */
+    private static final class WifiSummaryProvider implements TileSummaryProvider {
+        @Override
+        public CharSequence getSummary(Context context) {
+            final WifiManager wifiManager =
+                    (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+            final WifiInfo info = (wifiManager != null) ? wifiManager.getConnectionInfo() : null;
+            if (info == null || info.getNetworkId() == -1) {
+                return null;
+            }
+            return WifiInfo.removeDoubleQuotes(info.getSSID());
+        }
+
+        @Override
+        public long getTtlMillis() {
+            return 5 * 1000;
+        }
+    }
+
+    /**
+     * Shows the battery level.
+     */
+    private static final class BatterySummaryProvider implements TileSummaryProvider {
+        @Override
+        public CharSequence getSummary(Context context) {
+            final Intent intent = context.registerReceiver(null,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (intent == null || !Utils.isBatteryPresent(intent)) {
+                return null;
+            }
+            return Utils.getBatteryPercentage(intent);
+        }
+
+        @Override
+        public long getTtlMillis() {
+            return 30 * 1000;
+        }
+    }
+}
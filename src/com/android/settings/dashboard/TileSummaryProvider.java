@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.Context;
+
+/**
+ * Computes the live summary of a dashboard tile, e.g. the connected Wi-Fi network.
+ *
+ * The summaries are computed in parallel on background threads while the dashboard is shown,
+ * see {@link TileSummaryLoader}.
+ */
+public interface TileSummaryProvider {
+
+    /**
+     * Compute the summary of the tile, called on a background thread.
+     *
+     * @return the summary, or null to show the summary of the tile itself.
+     */
+    CharSequence getSummary(Context context);
+
+    /**
+     * @return how long the summary can be shown before being computed again.
+     */
+    long getTtlMillis();
+}
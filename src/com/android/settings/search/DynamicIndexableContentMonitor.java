@@ -43,7 +43,9 @@ import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
 import com.android.settings.print.PrintSettingsFragment;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public final class DynamicIndexableContentMonitor extends PackageMonitor implements
         InputManager.InputDeviceListener {
@@ -52,11 +54,18 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     private static final int MSG_PACKAGE_AVAILABLE = 1;
     private static final int MSG_PACKAGE_UNAVAILABLE = 2;
+    private static final int MSG_COMMIT_UPDATES = 3;
+
+    // Time window during which the updates of the Index are coalesced in a single one
+    private static final long DELAY_COMMIT_UPDATES = 2000;
 
     private final List<String> mAccessibilityServices = new ArrayList<String>();
     private final List<String> mPrintServices = new ArrayList<String>();
     private final List<String> mImeServices = new ArrayList<String>();
 
+    // Class names to update in the Index, mapped to true if their data has to be rebuilt
+    private final Map<String, Boolean> mPendingUpdates = new LinkedHashMap<String, Boolean>();
+
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -70,6 +79,10 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                     String packageName = (String) msg.obj;
                     handlePackageUnavailable(packageName);
                 } break;
+
+                case MSG_COMMIT_UPDATES: {
+                    commitUpdates();
+                } break;
             }
         }
     };
@@ -168,6 +181,9 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
     public void unregister() {
         super.unregister();
 
+        // Do not lose the updates that are waiting to be coalesced
+        commitUpdates();
+
         InputManager inputManager = (InputManager) mContext.getSystemService(
                 Context.INPUT_SERVICE);
         inputManager.unregisterInputDeviceListener(this);
@@ -210,8 +226,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceAdded(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), false, true);
+        scheduleUpdate(InputMethodAndLanguageSettings.class.getName(), false);
     }
 
     @Override
@@ -221,8 +236,30 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceChanged(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), true, true);
+        scheduleUpdate(InputMethodAndLanguageSettings.class.getName(), true);
+    }
+
+    /**
+     * Schedule an update of the Index for a class name. Updates scheduled within
+     * DELAY_COMMIT_UPDATES are deduplicated and committed together, so that bursts of events
+     * (like apps being restored) cost one update per screen rather than one per event.
+     */
+    private void scheduleUpdate(String className, boolean rebuild) {
+        final Boolean pending = mPendingUpdates.get(className);
+        mPendingUpdates.put(className, rebuild || (pending != null && pending));
+        if (!mHandler.hasMessages(MSG_COMMIT_UPDATES)) {
+            mHandler.sendEmptyMessageDelayed(MSG_COMMIT_UPDATES, DELAY_COMMIT_UPDATES);
+        }
+    }
+
+    private void commitUpdates() {
+        mHandler.removeMessages(MSG_COMMIT_UPDATES);
+        if (mPendingUpdates.isEmpty()) {
+            return;
+        }
+        Index.getInstance(mContext).updateFromClassNameResources(
+                new LinkedHashMap<String, Boolean>(mPendingUpdates), true);
+        mPendingUpdates.clear();
     }
 
     private void postMessage(int what, String packageName) {
@@ -231,12 +268,13 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
     }
 
     private void handlePackageAvailable(String packageName) {
+        Index.getInstance(mContext).invalidateNonIndexableKeys(packageName);
+
         if (!mAccessibilityServices.contains(packageName)) {
             final Intent intent = getAccessibilityServiceIntent(packageName);
             if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                 mAccessibilityServices.add(packageName);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        AccessibilitySettings.class.getName(), false, true);
+                scheduleUpdate(AccessibilitySettings.class.getName(), false);
             }
         }
 
@@ -245,8 +283,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 final Intent intent = getPrintServiceIntent(packageName);
                 if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                     mPrintServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            PrintSettingsFragment.class.getName(), false, true);
+                    scheduleUpdate(PrintSettingsFragment.class.getName(), false);
                 }
             }
         }
@@ -256,27 +293,26 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 Intent intent = getIMEServiceIntent(packageName);
                 if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                     mImeServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            InputMethodAndLanguageSettings.class.getName(), false, true);
+                    scheduleUpdate(InputMethodAndLanguageSettings.class.getName(), false);
                 }
             }
         }
     }
 
     private void handlePackageUnavailable(String packageName) {
+        Index.getInstance(mContext).invalidateNonIndexableKeys(packageName);
+
         final int accessibilityIndex = mAccessibilityServices.indexOf(packageName);
         if (accessibilityIndex >= 0) {
             mAccessibilityServices.remove(accessibilityIndex);
-            Index.getInstance(mContext).updateFromClassNameResource(
-                    AccessibilitySettings.class.getName(), true, true);
+            scheduleUpdate(AccessibilitySettings.class.getName(), true);
         }
 
         if (mHasFeaturePrinting) {
             final int printIndex = mPrintServices.indexOf(packageName);
             if (printIndex >= 0) {
                 mPrintServices.remove(printIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        PrintSettingsFragment.class.getName(), true, true);
+                scheduleUpdate(PrintSettingsFragment.class.getName(), true);
             }
         }
 
@@ -284,8 +320,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
             final int imeIndex = mImeServices.indexOf(packageName);
             if (imeIndex >= 0) {
                 mImeServices.remove(imeIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                scheduleUpdate(InputMethodAndLanguageSettings.class.getName(), true);
             }
         }
     }
@@ -299,8 +334,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (UserDictionary.Words.CONTENT_URI.equals(uri)) {
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                scheduleUpdate(InputMethodAndLanguageSettings.class.getName(), true);
             }
         };
     }
@@ -27,13 +27,19 @@ import android.content.pm.ResolveInfo;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -42,22 +48,36 @@ import android.util.AttributeSet;
 import android.util.Log;
 import android.util.TypedValue;
 import android.util.Xml;
+import com.android.settings.LaunchTrace;
 import com.android.settings.R;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
@@ -86,6 +106,9 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 
 import static com.android.settings.search.IndexDatabaseHelper.Tables;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.MetaColumns;
+import static com.android.settings.search.IndexDatabaseHelper.TrigramsColumns;
+import static com.android.settings.search.IndexDatabaseHelper.ClicksColumns;
 
 public class Index {
 
@@ -128,6 +151,58 @@ public class Index {
             IndexColumns.DATA_KEY_REF             // 13
     };
 
+    // If you change the order of columns here, you SHOULD change IndexRow.bindTo()
+    private static final String[] INSERT_COLUMNS = new String[] {
+            IndexColumns.DOCID,                       // 1
+            IndexColumns.LOCALE,                      // 2
+            IndexColumns.DATA_RANK,                   // 3
+            IndexColumns.DATA_TITLE,                  // 4
+            IndexColumns.DATA_TITLE_NORMALIZED,       // 5
+            IndexColumns.DATA_SUMMARY_ON,             // 6
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,  // 7
+            IndexColumns.DATA_SUMMARY_OFF,            // 8
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, // 9
+            IndexColumns.DATA_ENTRIES,                // 10
+            IndexColumns.DATA_KEYWORDS,               // 11
+            IndexColumns.CLASS_NAME,                  // 12
+            IndexColumns.SCREEN_TITLE,                // 13
+            IndexColumns.INTENT_ACTION,               // 14
+            IndexColumns.INTENT_TARGET_PACKAGE,       // 15
+            IndexColumns.INTENT_TARGET_CLASS,         // 16
+            IndexColumns.ICON,                        // 17
+            IndexColumns.ENABLED,                     // 18
+            IndexColumns.DATA_KEY_REF,                // 19
+            IndexColumns.USER_ID,                     // 20
+            IndexColumns.PACKAGE_NAME                 // 21
+    };
+
+    private static final String INSERT_INDEX_ROW_SQL = buildInsertSQL();
+
+    // Search and suggestions queries only differ by their arguments, so that SQLite can reuse
+    // their prepared statements. Arguments are the MATCH string and the locale.
+    // Results are ordered by popularity (see PopularityScores), then by rank.
+    private static final String SEARCH_PRIMARY_SQL =
+            buildSearchSQL() + " ORDER BY " + buildOrderBy(Tables.TABLE_PREFS_DATA);
+    // We need to use an EXCEPT operator as negate MATCH queries do not work.
+    private static final String SEARCH_SECONDARY_SQL = buildSecondarySearchSQL();
+
+    private static final String INSERT_TRIGRAM_SQL =
+            "INSERT OR IGNORE INTO " + Tables.TABLE_PREFS_TRIGRAMS +
+                    " (" + TrigramsColumns.TRIGRAM + ", " + TrigramsColumns.DOCID + ")" +
+                    " VALUES (?, ?)";
+
+    // Max number of trigrams of a query looked up when searching for near matches
+    private static final int MAX_NEAR_MATCH_TRIGRAMS = 32;
+    // Min number of letters of a query for searching near matches
+    private static final int MIN_NEAR_MATCH_QUERY_LENGTH = 3;
+    // Max number of near matches returned when a query has no results
+    private static final int MAX_NEAR_MATCHES = 20;
+
+    // Arguments are the MAX_NEAR_MATCH_TRIGRAMS trigrams of the query (repeated when it has less),
+    // the locale and the min number of trigrams a near match has to share with the query.
+    private static final String SEARCH_NEAR_MATCHES_SQL = buildNearMatchesSQL();
+
+
     private static final String[] MATCH_COLUMNS_PRIMARY = {
             IndexColumns.DATA_TITLE,
             IndexColumns.DATA_TITLE_NORMALIZED,
@@ -143,9 +218,28 @@ public class Index {
     };
 
     // Max number of saved search queries (who will be used for proposing suggestions)
-    private static long MAX_SAVED_SEARCH_QUERY = 64;
+    static final int MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
     private static final int MAX_PROPOSED_SUGGESTIONS = 5;
+    // Delay before writing the saved search queries, so that they are written by batches
+    static final long SAVED_QUERIES_WRITE_DELAY_MILLIS = 5000;
+
+    private static final String[] SUGGESTIONS_COLUMNS = {
+            IndexDatabaseHelper.SavedQueriesColums.QUERY
+    };
+
+    // Max number of threads parsing the XML resources of Settings while the update task writes
+    // the rows
+    private static final int MAX_INDEXING_THREADS = 4;
+    private static final long INDEXING_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+    // Max number of threads querying the remote SearchIndexablesProviders
+    private static final int MAX_PROVIDER_THREADS = 4;
+    private static final long PROVIDER_THREAD_KEEP_ALIVE_SECONDS = 10;
+    // Max time for querying one provider, from the time its queries start
+    private static final long PROVIDER_TIMEOUT_MILLIS = 3000;
+    // Max time for discovering and querying all the providers
+    private static final long DISCOVERY_TIMEOUT_MILLIS = 10000;
 
     private static final String BASE_AUTHORITY = "com.android.settings";
 
@@ -160,34 +254,69 @@ public class Index {
     private static final String NODE_NAME_CHECK_BOX_PREFERENCE = "CheckBoxPreference";
     private static final String NODE_NAME_LIST_PREFERENCE = "ListPreference";
 
-    private static final List<String> EMPTY_LIST = Collections.<String>emptyList();
+    private static final Set<String> EMPTY_SET = Collections.<String>emptySet();
 
     private static Index sInstance;
+    private static ExecutorService sProviderExecutor;
+    private static ExecutorService sIndexingExecutor;
+    // Providers of the local Indexable classes, by class name, null if the class has none
+    private static final Map<String, Indexable.SearchIndexProvider> sSearchIndexProviders =
+            new HashMap<String, Indexable.SearchIndexProvider>();
 
     private static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
+    /**
+     * The non indexable keys of a remote provider, with the version of its package
+     */
+    private static final class NonIndexableKeys {
+        public final String packageName;
+        public final String packageVersion;
+        public final Set<String> keys;
+
+        public NonIndexableKeys(String packageName, String packageVersion, Set<String> keys) {
+            this.packageName = packageName;
+            this.packageVersion = packageVersion;
+            this.keys = Collections.unmodifiableSet(keys);
+        }
+    }
+
+    /**
+     * The data fetched from a remote provider
+     */
+    private static final class ProviderData {
+        public final String packageName;
+        public final List<SearchIndexableData> indexables = new ArrayList<SearchIndexableData>();
+        public Set<String> nonIndexableKeys;
+
+        public ProviderData(String packageName) {
+            this.packageName = packageName;
+        }
+    }
+
     /**
      * A private class to describe the update data for the Index database
      */
     private static class UpdateData {
         public List<SearchIndexableData> dataToUpdate;
         public List<SearchIndexableData> dataToDelete;
-        public Map<String, List<String>> nonIndexableKeys;
+        public Map<String, Set<String>> nonIndexableKeys;
 
         public boolean forceUpdate = false;
+        public boolean fullIndex = false;
 
         public UpdateData() {
             dataToUpdate = new ArrayList<SearchIndexableData>();
             dataToDelete = new ArrayList<SearchIndexableData>();
-            nonIndexableKeys = new HashMap<String, List<String>>();
+            nonIndexableKeys = new HashMap<String, Set<String>>();
         }
 
         public UpdateData(UpdateData other) {
             dataToUpdate = new ArrayList<SearchIndexableData>(other.dataToUpdate);
             dataToDelete = new ArrayList<SearchIndexableData>(other.dataToDelete);
-            nonIndexableKeys = new HashMap<String, List<String>>(other.nonIndexableKeys);
+            nonIndexableKeys = new HashMap<String, Set<String>>(other.nonIndexableKeys);
             forceUpdate = other.forceUpdate;
+            fullIndex = other.fullIndex;
         }
 
         public UpdateData copy() {
@@ -199,13 +328,152 @@ public class Index {
             dataToDelete.clear();
             nonIndexableKeys.clear();
             forceUpdate = false;
+            fullIndex = false;
         }
     }
 
+    /**
+     * A private class to describe one row of the Index database. Rows are produced by the
+     * parsing stage of an update and written in batches by the update task.
+     */
+    private static final class IndexRow {
+        private final int docId;
+        private final String locale;
+        private final int rank;
+        private final String title;
+        private final String normalizedTitle;
+        private final String summaryOn;
+        private final String normalizedSummaryOn;
+        private final String summaryOff;
+        private final String normalizedSummaryOff;
+        private final String entries;
+        private final String keywords;
+        private final String className;
+        private final String screenTitle;
+        private final String intentAction;
+        private final String intentTargetPackage;
+        private final String intentTargetClass;
+        private final int iconResId;
+        private final boolean enabled;
+        private final String key;
+        private final int userId;
+        private final String packageName;
+        private final String[] trigrams;
+
+        public IndexRow(int docId, String locale, int rank, String title, String normalizedTitle,
+                String summaryOn, String normalizedSummaryOn, String summaryOff,
+                String normalizedSummaryOff, String entries, String keywords, String className,
+                String screenTitle, String intentAction, String intentTargetPackage,
+                String intentTargetClass, int iconResId, boolean enabled, String key, int userId,
+                String packageName, String[] trigrams) {
+            this.docId = docId;
+            this.locale = locale;
+            this.rank = rank;
+            this.title = title;
+            this.normalizedTitle = normalizedTitle;
+            this.summaryOn = summaryOn;
+            this.normalizedSummaryOn = normalizedSummaryOn;
+            this.summaryOff = summaryOff;
+            this.normalizedSummaryOff = normalizedSummaryOff;
+            this.entries = entries;
+            this.keywords = keywords;
+            this.className = className;
+            this.screenTitle = screenTitle;
+            this.intentAction = intentAction;
+            this.intentTargetPackage = intentTargetPackage;
+            this.intentTargetClass = intentTargetClass;
+            this.iconResId = iconResId;
+            this.enabled = enabled;
+            this.key = key;
+            this.userId = userId;
+            this.packageName = packageName;
+            this.trigrams = trigrams;
+        }
+
+        public void bindTo(SQLiteStatement statement) {
+            statement.bindLong(1, docId);
+            bindStringOrNull(statement, 2, locale);
+            statement.bindLong(3, rank);
+            bindStringOrNull(statement, 4, title);
+            bindStringOrNull(statement, 5, normalizedTitle);
+            bindStringOrNull(statement, 6, summaryOn);
+            bindStringOrNull(statement, 7, normalizedSummaryOn);
+            bindStringOrNull(statement, 8, summaryOff);
+            bindStringOrNull(statement, 9, normalizedSummaryOff);
+            bindStringOrNull(statement, 10, entries);
+            bindStringOrNull(statement, 11, keywords);
+            bindStringOrNull(statement, 12, className);
+            bindStringOrNull(statement, 13, screenTitle);
+            bindStringOrNull(statement, 14, intentAction);
+            bindStringOrNull(statement, 15, intentTargetPackage);
+            bindStringOrNull(statement, 16, intentTargetClass);
+            statement.bindLong(17, iconResId);
+            statement.bindLong(18, enabled ? 1 : 0);
+            bindStringOrNull(statement, 19, key);
+            statement.bindLong(20, userId);
+            bindStringOrNull(statement, 21, packageName);
+        }
+
+        public void insertTrigrams(SQLiteStatement statement) {
+            for (String trigram : trigrams) {
+                statement.bindString(1, trigram);
+                statement.bindLong(2, docId);
+                statement.executeInsert();
+            }
+        }
+
+        private static void bindStringOrNull(SQLiteStatement statement, int index,
+                String value) {
+            if (value != null) {
+                statement.bindString(index, value);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+    }
+
+    /**
+     * The rows parsed from one SearchIndexableData, and how they were parsed
+     */
+    private static final class IndexBatch {
+        public final List<IndexRow> rows = new ArrayList<IndexRow>();
+        // Rows not indexed as their key is non indexable
+        public int skippedRows;
+        public long parseNanos;
+    }
+
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
+    private final IndexStats mStats = new IndexStats();
+    // Updates write in a transaction, and searches keep reading the previous generation of the
+    // Index until it commits (see IndexDatabaseHelper). These track that previous generation.
+    private final AtomicInteger mUpdatesInProgress = new AtomicInteger();
+    private volatile String mIndexedLocale;
     private final UpdateData mDataToProcess = new UpdateData();
+    // Lazily built from the database, reset every time the database is updated
+    private final Object mPrefixIndexLock = new Object();
+    private PrefixIndex mPrefixIndex;
+    // Lazily loaded from the database, then updated by every click on a search result
+    private final Object mPopularityScoresLock = new Object();
+    private PopularityScores mPopularityScores;
+    // Loaded by the first suggestions request, then updated by every saved query
+    private final SavedQueries mSavedQueries = new SavedQueries(MAX_SAVED_SEARCH_QUERY);
+    private final Handler mHandler;
+    private final long mSavedQueriesWriteDelay;
+    private final Runnable mWriteSavedQueries = new Runnable() {
+        @Override
+        public void run() {
+            new SaveSearchQueryTask().execute();
+        }
+    };
+    // Only accessed from the main thread
+    private DiscoverProvidersTask mDiscoverProvidersTask;
+    // Non indexable keys of the remote providers, by authority
+    private final Map<String, NonIndexableKeys> mNonIndexableKeysCache =
+            new HashMap<String, NonIndexableKeys>();
     private Context mContext;
     private final String mBaseAuthority;
+    // Null for the Index of the device, see IndexDatabaseHelper.getInstance()
+    private final IndexDatabaseHelper mDatabaseHelper;
 
     /**
      * A basic singleton
@@ -220,8 +488,19 @@ public class Index {
     }
 
     public Index(Context context, String baseAuthority) {
+        this(context, baseAuthority, null, new Handler(Looper.getMainLooper()),
+                SAVED_QUERIES_WRITE_DELAY_MILLIS);
+    }
+
+    // Used by the tests to work on another database than the Index of the device, and to
+    // control when the saved queries are written
+    Index(Context context, String baseAuthority, IndexDatabaseHelper databaseHelper,
+            Handler handler, long savedQueriesWriteDelay) {
         mContext = context;
         mBaseAuthority = baseAuthority;
+        mDatabaseHelper = databaseHelper;
+        mHandler = handler;
+        mSavedQueriesWriteDelay = savedQueriesWriteDelay;
     }
 
     public void setContext(Context context) {
@@ -232,95 +511,346 @@ public class Index {
         return mIsAvailable.get();
     }
 
+    /**
+     * Dump the state of the Index and the statistics of its recent updates and searches.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Search index:");
+        final String innerPrefix = prefix + "  ";
+        writer.print(innerPrefix);
+        writer.print("Available: ");
+        writer.println(mIsAvailable.get());
+        writer.print(innerPrefix);
+        writer.print("Indexed locale: ");
+        writer.println(mIndexedLocale);
+        writer.print(innerPrefix);
+        writer.print("Updates in progress: ");
+        writer.println(mUpdatesInProgress.get());
+        mStats.dump(innerPrefix, writer);
+    }
+
     public Cursor search(String query) {
+        return search(query, null);
+    }
+
+    /**
+     * Search the Index.
+     *
+     * @param cancellationSignal a signal to cancel the query while it is running, can be null.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        final long start = System.nanoTime();
+        Cursor cursor = searchMatches(query, cancellationSignal);
+        if (cursor.getCount() == 0) {
+            cursor.close();
+            cursor = searchNearMatches(query, cancellationSignal);
+            // Run the query now, so that its time is part of the latency
+            cursor.getCount();
+        }
+        mStats.addSearchLatency(System.nanoTime() - start);
+        return cursor;
+    }
+
+    private Cursor searchMatches(String query, CancellationSignal cancellationSignal) {
+        final PrefixIndex prefixIndex = getPrefixIndex();
+        if (prefixIndex != null) {
+            final PopularityScores scores = getPopularityScores();
+            return prefixIndex.search(query, cancellationSignal, (scores != null) ?
+                    scores.getComparator(COLUMN_INDEX_CLASS_NAME, COLUMN_INDEX_KEY) : null);
+        }
+
         final SQLiteDatabase database = getReadableDatabase();
         final Cursor[] cursors = new Cursor[2];
 
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+        final String localeStr = getSearchLocale();
+        final String primaryMatch =
+                buildSearchMatchStringForColumns(query, MATCH_COLUMNS_PRIMARY);
+        final String secondaryMatch =
+                buildSearchMatchStringForColumns(query, MATCH_COLUMNS_SECONDARY);
 
-        // We need to use an EXCEPT operator as negate MATCH queries do not work.
-        StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
-        sql.append(" EXCEPT ");
-        sql.append(primarySql);
+        Log.d(LOG_TAG, "Search primary match: " + primaryMatch);
+        cursors[0] = database.rawQuery(SEARCH_PRIMARY_SQL,
+                new String[] { primaryMatch, localeStr }, cancellationSignal);
 
-        final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+        Log.d(LOG_TAG, "Search secondary match: " + secondaryMatch);
+        cursors[1] = database.rawQuery(SEARCH_SECONDARY_SQL,
+                new String[] { secondaryMatch, localeStr, primaryMatch, localeStr },
+                cancellationSignal);
 
         return new MergeCursor(cursors);
     }
 
-    public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+    /**
+     * Search the rows sharing the most trigrams with a query that has no matches, so that a
+     * misspelled query still finds the settings it was meant for.
+     */
+    private Cursor searchNearMatches(String query, CancellationSignal cancellationSignal) {
+        final String[] trigrams = Trigrams.of(query);
+        if (trigrams.length == 0 ||
+                Trigrams.getWordsLength(query) < MIN_NEAR_MATCH_QUERY_LENGTH) {
+            return new MatrixCursor(SELECT_COLUMNS, 0);
+        }
+
+        final int count = Math.min(trigrams.length, MAX_NEAR_MATCH_TRIGRAMS);
+        final String[] args = new String[MAX_NEAR_MATCH_TRIGRAMS + 2];
+        for (int n = 0; n < MAX_NEAR_MATCH_TRIGRAMS; n++) {
+            args[n] = trigrams[n % count];
+        }
+        args[MAX_NEAR_MATCH_TRIGRAMS] = getSearchLocale();
+        // A near match has to share at least half of the trigrams of the query
+        args[MAX_NEAR_MATCH_TRIGRAMS + 1] = String.valueOf((count + 1) / 2);
+
+        Log.d(LOG_TAG, "Search near matches of: " + query);
+        return getReadableDatabase().rawQuery(SEARCH_NEAR_MATCHES_SQL, args,
+                cancellationSignal);
     }
 
-    private String buildSuggestionsSQL(String query) {
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Copy the rows of a search results cursor. The copy can be turned back into a cursor with
+     * {@link #newSearchResultsCursor(List)} or refined with {@link #refineSearchResults}.
+     */
+    public static List<Object[]> copySearchResults(Cursor cursor) {
+        final List<Object[]> rows = new ArrayList<Object[]>(cursor.getCount());
+        final int columnCount = SELECT_COLUMNS.length;
+        while (cursor.moveToNext()) {
+            final Object[] values = new Object[columnCount];
+            for (int n = 0; n < columnCount; n++) {
+                values[n] = PrefixIndex.getValue(cursor, n);
+            }
+            rows.add(values);
+        }
+        return rows;
+    }
 
-        sb.append("SELECT ");
-        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_SAVED_QUERIES);
+    public static Cursor newSearchResultsCursor(List<Object[]> rows) {
+        final int count = rows.size();
+        final MatrixCursor cursor = new MatrixCursor(SELECT_COLUMNS, count);
+        for (int n = 0; n < count; n++) {
+            cursor.addRow(rows.get(n));
+        }
+        return cursor;
+    }
 
-        if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
-        } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+    /**
+     * Return true if the results of a query can be computed by refining the results of a
+     * previous query, that is if the query only extends the previous one.
+     */
+    public static boolean isRefinement(String previousQuery, String query) {
+        return !TextUtils.isEmpty(previousQuery) && query != null &&
+                query.startsWith(previousQuery);
+    }
+
+    /**
+     * Narrow down the results of a previous query to the ones matching a query extending it
+     * (see {@link #isRefinement}), without going to the database.
+     *
+     * @param rows the results of the previous query, as returned by {@link #copySearchResults}.
+     * @param cancellationSignal a signal to cancel the refinement, can be null.
+     */
+    public static List<Object[]> refineSearchResults(List<Object[]> rows, String query,
+            CancellationSignal cancellationSignal) {
+        final String[] prefixes = PrefixIndex.getPrefixes(query);
+        final List<Object[]> primary = new ArrayList<Object[]>();
+        final List<Object[]> secondary = new ArrayList<Object[]>();
+        final int count = rows.size();
+        for (int n = 0; n < count; n++) {
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            final Object[] row = rows.get(n);
+            if (PrefixIndex.matches(prefixes, getString(row, COLUMN_INDEX_TITLE),
+                    getString(row, COLUMN_INDEX_KEYWORDS))) {
+                primary.add(row);
+            } else if (PrefixIndex.matches(prefixes, getString(row, COLUMN_INDEX_SUMMARY_ON),
+                    getString(row, COLUMN_INDEX_SUMMARY_OFF),
+                    getString(row, COLUMN_INDEX_ENTRIES))) {
+                secondary.add(row);
+            }
         }
+        primary.addAll(secondary);
+        return primary;
+    }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+    private static String getString(Object[] row, int column) {
+        return (row[column] != null) ? row[column].toString() : null;
+    }
 
-        return sb.toString();
+    /**
+     * Return the locale of the rows to search. It is the current locale, unless the Index is
+     * being updated for it while the previous generation was for another locale: that
+     * generation keeps being searched until the update commits, rather than nothing.
+     */
+    private String getSearchLocale() {
+        final String localeStr = Locale.getDefault().toString();
+        final String indexedLocale = mIndexedLocale;
+        if (indexedLocale != null && !indexedLocale.equals(localeStr) &&
+                mUpdatesInProgress.get() > 0) {
+            return indexedLocale;
+        }
+        return localeStr;
     }
 
-    public long addSavedQuery(String query){
-        final SaveSearchQueryTask task = new SaveSearchQueryTask();
-        task.execute(query);
-        try {
-            return task.get();
-        } catch (InterruptedException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1 ;
-        } catch (ExecutionException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1;
+    private PrefixIndex getPrefixIndex() {
+        if (!mContext.getResources().getBoolean(R.bool.config_search_in_memory_index)) {
+            return null;
+        }
+        final String localeStr = getSearchLocale();
+        synchronized (mPrefixIndexLock) {
+            if (mPrefixIndex == null || !localeStr.equals(mPrefixIndex.getLocale())) {
+                try {
+                    final long start = System.currentTimeMillis();
+                    mPrefixIndex = PrefixIndex.build(getReadableDatabase(), localeStr,
+                            SELECT_COLUMNS, MATCH_COLUMNS_PRIMARY, MATCH_COLUMNS_SECONDARY);
+                    Log.d(LOG_TAG, "Building prefix index for locale '" + localeStr +
+                            "' took " + (System.currentTimeMillis() - start) + " millis");
+                } catch (SQLiteException e) {
+                    Log.e(LOG_TAG, "Cannot build prefix index", e);
+                    return null;
+                }
+            }
+            return mPrefixIndex;
         }
     }
 
-    public void update() {
-        final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
-        List<ResolveInfo> list =
-                mContext.getPackageManager().queryIntentContentProviders(intent, 0);
-
-        final int size = list.size();
-        for (int n = 0; n < size; n++) {
-            final ResolveInfo info = list.get(n);
-            if (!isWellKnownProvider(info)) {
-                continue;
+    private void invalidatePrefixIndex() {
+        synchronized (mPrefixIndexLock) {
+            mPrefixIndex = null;
+        }
+    }
+
+    private PopularityScores getPopularityScores() {
+        synchronized (mPopularityScoresLock) {
+            if (mPopularityScores == null) {
+                try {
+                    mPopularityScores = PopularityScores.load(getReadableDatabase());
+                } catch (SQLiteException e) {
+                    Log.e(LOG_TAG, "Cannot load search results popularity", e);
+                    return null;
+                }
             }
-            final String authority = info.providerInfo.authority;
-            final String packageName = info.providerInfo.packageName;
+            return mPopularityScores;
+        }
+    }
 
-            addIndexablesFromRemoteProvider(packageName, authority);
-            addNonIndexablesKeysFromRemoteProvider(packageName, authority);
+    /**
+     * Record a click on a search result, so that the most used results come first.
+     */
+    public void addSearchResultClick(String className, String key) {
+        if (TextUtils.isEmpty(className)) {
+            return;
         }
+        new SaveSearchResultClickTask().execute(className, key);
+    }
 
-        updateInternal();
+    public Cursor getSuggestions(String query) {
+        return getSuggestions(query, null);
+    }
+
+    /**
+     * Get the saved queries to propose as suggestions, the most recent first.
+     *
+     * The saved queries are loaded from the database by the first call, then served from
+     * memory.
+     *
+     * @param cancellationSignal a signal to cancel the query while it is running, can be null.
+     */
+    public Cursor getSuggestions(String query, CancellationSignal cancellationSignal) {
+        if (!mSavedQueries.isLoaded()) {
+            try {
+                mSavedQueries.load(getReadableDatabase());
+            } catch (SQLiteException e) {
+                Log.e(LOG_TAG, "Cannot load saved Search queries", e);
+            }
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+
+        final MatrixCursor cursor = new MatrixCursor(SUGGESTIONS_COLUMNS);
+        for (String suggestion : mSavedQueries.getSuggestions(query, MAX_PROPOSED_SUGGESTIONS)) {
+            cursor.addRow(new Object[] { suggestion });
+        }
+        return cursor;
+    }
+
+    /**
+     * Save a search query to propose it as a suggestion. The query is available right away, it
+     * is written to the database later on with the other queries saved in the meantime.
+     */
+    public void addSavedQuery(String query) {
+        if (TextUtils.isEmpty(query)) {
+            return;
+        }
+        mSavedQueries.add(query, System.currentTimeMillis());
+        mHandler.removeCallbacks(mWriteSavedQueries);
+        mHandler.postDelayed(mWriteSavedQueries, mSavedQueriesWriteDelay);
     }
 
-    private boolean addIndexablesFromRemoteProvider(String packageName, String authority) {
+    /**
+     * Update the Index with the data of all the well known SearchIndexablesProviders. The
+     * providers are discovered and queried in the background, see DiscoverProvidersTask.
+     */
+    public void update() {
+        if (mDiscoverProvidersTask != null) {
+            // The running discovery will update the Index with the current data
+            return;
+        }
+        LaunchTrace.beginAsync(LaunchTrace.PHASE_INDEX_UPDATE);
+        mDiscoverProvidersTask = new DiscoverProvidersTask();
+        mDiscoverProvidersTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private static synchronized ExecutorService getProviderExecutor() {
+        if (sProviderExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_PROVIDER_THREADS,
+                    MAX_PROVIDER_THREADS, PROVIDER_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            sProviderExecutor = executor;
+        }
+        return sProviderExecutor;
+    }
+
+    private static synchronized ExecutorService getIndexingExecutor() {
+        if (sIndexingExecutor == null) {
+            final int threads = Math.max(1,
+                    Math.min(MAX_INDEXING_THREADS, Runtime.getRuntime().availableProcessors()));
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                    INDEXING_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "SettingsIndexer #" + mCount.getAndIncrement());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sIndexingExecutor = executor;
+        }
+        return sIndexingExecutor;
+    }
+
+    /**
+     * Fetch the data of a remote provider.
+     *
+     * @return the data, or null if the provider cannot be queried.
+     */
+    private ProviderData fetchRemoteProvider(String packageName, String authority,
+            CancellationSignal cancellationSignal) {
+        final ProviderData result = new ProviderData(packageName);
+        if (!addIndexablesFromRemoteProvider(result.indexables, packageName, authority,
+                cancellationSignal)) {
+            return null;
+        }
+        result.nonIndexableKeys =
+                getNonIndexablesKeysFromRemoteProvider(packageName, authority, cancellationSignal);
+        return result;
+    }
+
+    private boolean addIndexablesFromRemoteProvider(List<SearchIndexableData> indexables,
+            String packageName, String authority, CancellationSignal cancellationSignal) {
         try {
             final int baseRank = Ranking.getBaseRankForAuthority(authority);
 
@@ -328,12 +858,14 @@ public class Index {
                     mContext : mContext.createPackageContext(packageName, 0);
 
             final Uri uriForResources = buildUriForXmlResources(authority);
-            addIndexablesForXmlResourceUri(context, packageName, uriForResources,
-                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank);
+            addIndexablesForXmlResourceUri(indexables, context, packageName, uriForResources,
+                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank,
+                    cancellationSignal);
 
             final Uri uriForRawData = buildUriForRawData(authority);
-            addIndexablesForRawDataUri(context, packageName, uriForRawData,
-                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank);
+            addIndexablesForRawDataUri(indexables, context, packageName, uriForRawData,
+                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank,
+                    cancellationSignal);
             return true;
         } catch (PackageManager.NameNotFoundException e) {
             Log.w(LOG_TAG, "Could not create context for " + packageName + ": "
@@ -342,40 +874,77 @@ public class Index {
         }
     }
 
-    private void addNonIndexablesKeysFromRemoteProvider(String packageName,
-                                                        String authority) {
-        final List<String> keys =
-                getNonIndexablesKeysFromRemoteProvider(packageName, authority);
-        addNonIndexableKeys(packageName, keys);
-    }
+    /**
+     * Return the non indexable keys of a remote provider. They are cached until the package of
+     * the provider changes, see {@link #invalidateNonIndexableKeys(String)}.
+     */
+    private Set<String> getNonIndexablesKeysFromRemoteProvider(String packageName,
+            String authority, CancellationSignal cancellationSignal) {
+        // The package may have changed while the DynamicIndexableContentMonitor was not
+        // registered, so check its version too
+        final String version = getPackageVersion(mContext.getPackageManager(), packageName);
+        synchronized (mNonIndexableKeysCache) {
+            final NonIndexableKeys cached = mNonIndexableKeysCache.get(authority);
+            if (cached != null && cached.packageName.equals(packageName) &&
+                    cached.packageVersion.equals(version)) {
+                return cached.keys;
+            }
+        }
 
-    private List<String> getNonIndexablesKeysFromRemoteProvider(String packageName,
-                                                                String authority) {
+        final Set<String> keys;
         try {
             final Context packageContext = mContext.createPackageContext(packageName, 0);
 
             final Uri uriForNonIndexableKeys = buildUriForNonIndexableKeys(authority);
-            return getNonIndexablesKeys(packageContext, uriForNonIndexableKeys,
-                    SearchIndexablesContract.NON_INDEXABLES_KEYS_COLUMNS);
+            keys = getNonIndexablesKeys(packageContext, uriForNonIndexableKeys,
+                    SearchIndexablesContract.NON_INDEXABLES_KEYS_COLUMNS, cancellationSignal);
         } catch (PackageManager.NameNotFoundException e) {
             Log.w(LOG_TAG, "Could not create context for " + packageName + ": "
                     + Log.getStackTraceString(e));
-            return EMPTY_LIST;
+            return EMPTY_SET;
+        }
+
+        if (keys != null) {
+            synchronized (mNonIndexableKeysCache) {
+                mNonIndexableKeysCache.put(authority,
+                        new NonIndexableKeys(packageName, version, keys));
+            }
+            return keys;
         }
+        return EMPTY_SET;
     }
 
-    private List<String> getNonIndexablesKeys(Context packageContext, Uri uri,
-                                              String[] projection) {
+    /**
+     * Forget the cached non indexable keys of the providers of a package, for when the package
+     * has been installed, updated, enabled, disabled or removed.
+     */
+    public void invalidateNonIndexableKeys(String packageName) {
+        synchronized (mNonIndexableKeysCache) {
+            final Iterator<NonIndexableKeys> it = mNonIndexableKeysCache.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().packageName.equals(packageName)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the keys, or null if the provider could not be queried.
+     */
+    private Set<String> getNonIndexablesKeys(Context packageContext, Uri uri,
+            String[] projection, CancellationSignal cancellationSignal) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
-        final Cursor cursor = resolver.query(uri, projection, null, null, null);
+        final Cursor cursor = resolver.query(uri, projection, null, null, null,
+                cancellationSignal);
 
         if (cursor == null) {
             Log.w(LOG_TAG, "Cannot add index data for Uri: " + uri.toString());
-            return EMPTY_LIST;
+            return null;
         }
 
-        List<String> result = new ArrayList<String>();
+        Set<String> result = new HashSet<String>();
         try {
             final int count = cursor.getCount();
             if (count > 0) {
@@ -411,9 +980,20 @@ public class Index {
         }
     }
 
-    public void addNonIndexableKeys(String authority, List<String> keys) {
+    /**
+     * Add the non indexable keys of a package. Keys from several providers of the same package
+     * are merged.
+     */
+    public void addNonIndexableKeys(String packageName, Set<String> keys) {
         synchronized (mDataToProcess) {
-            mDataToProcess.nonIndexableKeys.put(authority, keys);
+            final Set<String> previous = mDataToProcess.nonIndexableKeys.get(packageName);
+            if (previous == null || previous.isEmpty()) {
+                mDataToProcess.nonIndexableKeys.put(packageName, keys);
+            } else if (!keys.isEmpty()) {
+                final Set<String> merged = new HashSet<String>(previous);
+                merged.addAll(keys);
+                mDataToProcess.nonIndexableKeys.put(packageName, merged);
+            }
         }
     }
 
@@ -458,7 +1038,12 @@ public class Index {
     }
 
     private void updateFromRemoteProvider(String packageName, String authority) {
-        if (addIndexablesFromRemoteProvider(packageName, authority)) {
+        final List<SearchIndexableData> indexables = new ArrayList<SearchIndexableData>();
+        if (addIndexablesFromRemoteProvider(indexables, packageName, authority, null)) {
+            final int count = indexables.size();
+            for (int n = 0; n < count; n++) {
+                addIndexableData(indexables.get(n));
+            }
             updateInternal();
         }
     }
@@ -476,20 +1061,59 @@ public class Index {
         if (className == null) {
             throw new IllegalArgumentException("class name cannot be null!");
         }
+        final SearchIndexableResource res =
+                addClassNameResource(className, rebuild, includeInSearchResults);
+        if (res == null) {
+            return;
+        }
+        mDataToProcess.forceUpdate = true;
+        updateInternal();
+        res.enabled = false;
+    }
+
+    /**
+     * Update the Index for several class name resources in a single update
+     *
+     * @param classNames the class names, mapped to true for the ones whose data you want to
+     *                   delete from the Index first.
+     * @param includeInSearchResults true means that you want the bit "enabled" set so that the
+     *                               data will be seen included into the search results
+     */
+    public void updateFromClassNameResources(Map<String, Boolean> classNames,
+            boolean includeInSearchResults) {
+        final List<SearchIndexableResource> resources = new ArrayList<SearchIndexableResource>();
+        for (Map.Entry<String, Boolean> entry : classNames.entrySet()) {
+            final SearchIndexableResource res = addClassNameResource(entry.getKey(),
+                    entry.getValue(), includeInSearchResults);
+            if (res != null) {
+                resources.add(res);
+            }
+        }
+        if (resources.isEmpty()) {
+            return;
+        }
+        mDataToProcess.forceUpdate = true;
+        updateInternal();
+        for (SearchIndexableResource res : resources) {
+            res.enabled = false;
+        }
+    }
+
+    private SearchIndexableResource addClassNameResource(String className, boolean rebuild,
+            boolean includeInSearchResults) {
         final SearchIndexableResource res = SearchIndexableResources.getResourceByName(className);
         if (res == null ) {
             Log.e(LOG_TAG, "Cannot find SearchIndexableResources for class name: " + className);
-            return;
+            return null;
         }
         res.context = mContext;
+        res.packageName = mContext.getPackageName();
         res.enabled = includeInSearchResults;
         if (rebuild) {
             deleteIndexableData(res);
         }
         addIndexableData(res);
-        mDataToProcess.forceUpdate = true;
-        updateInternal();
-        res.enabled = false;
+        return res;
     }
 
     public void updateFromSearchIndexableData(SearchIndexableData data) {
@@ -498,13 +1122,18 @@ public class Index {
         updateInternal();
     }
 
+    private IndexDatabaseHelper getDatabaseHelper() {
+        return (mDatabaseHelper != null) ?
+                mDatabaseHelper : IndexDatabaseHelper.getInstance(mContext);
+    }
+
     private SQLiteDatabase getReadableDatabase() {
-        return IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
+        return getDatabaseHelper().getReadableDatabase();
     }
 
     private SQLiteDatabase getWritableDatabase() {
         try {
-            return IndexDatabaseHelper.getInstance(mContext).getWritableDatabase();
+            return getDatabaseHelper().getWritableDatabase();
         } catch (SQLiteException e) {
             Log.e(LOG_TAG, "Cannot open writable database", e);
             return null;
@@ -527,19 +1156,29 @@ public class Index {
     }
 
     private void updateInternal() {
+        updateInternal(false);
+    }
+
+    /**
+     * @param providersUpdate whether this updates the Index with the data of all the providers,
+     * see {@link #update()}.
+     */
+    private void updateInternal(boolean providersUpdate) {
         synchronized (mDataToProcess) {
-            final UpdateIndexTask task = new UpdateIndexTask();
+            final UpdateIndexTask task = new UpdateIndexTask(providersUpdate);
             UpdateData copy = mDataToProcess.copy();
             task.execute(copy);
             mDataToProcess.clear();
         }
     }
 
-    private void addIndexablesForXmlResourceUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+    private void addIndexablesForXmlResourceUri(List<SearchIndexableData> indexables,
+            Context packageContext, String packageName, Uri uri, String[] projection,
+            int baseRank, CancellationSignal cancellationSignal) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
-        final Cursor cursor = resolver.query(uri, projection, null, null, null);
+        final Cursor cursor = resolver.query(uri, projection, null, null, null,
+                cancellationSignal);
 
         if (cursor == null) {
             Log.w(LOG_TAG, "Cannot add index data for Uri: " + uri.toString());
@@ -574,7 +1213,7 @@ public class Index {
                     sir.intentTargetPackage = targetPackage;
                     sir.intentTargetClass = targetClass;
 
-                    addIndexableData(sir);
+                    indexables.add(sir);
                 }
             }
         } finally {
@@ -582,11 +1221,13 @@ public class Index {
         }
     }
 
-    private void addIndexablesForRawDataUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+    private void addIndexablesForRawDataUri(List<SearchIndexableData> indexables,
+            Context packageContext, String packageName, Uri uri, String[] projection,
+            int baseRank, CancellationSignal cancellationSignal) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
-        final Cursor cursor = resolver.query(uri, projection, null, null, null);
+        final Cursor cursor = resolver.query(uri, projection, null, null, null,
+                cancellationSignal);
 
         if (cursor == null) {
             Log.w(LOG_TAG, "Cannot add index data for Uri: " + uri.toString());
@@ -637,7 +1278,7 @@ public class Index {
                     data.key = key;
                     data.userId = userId;
 
-                    addIndexableData(data);
+                    indexables.add(data);
                 }
             }
         } finally {
@@ -645,17 +1286,29 @@ public class Index {
         }
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
+    private static String buildInsertSQL() {
         StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
-        if (withOrderBy) {
-            sb.append(" ORDER BY ");
-            sb.append(IndexColumns.DATA_RANK);
+        sb.append("INSERT OR REPLACE INTO ");
+        sb.append(Tables.TABLE_PREFS_DATA);
+        sb.append(" (");
+        for (int n = 0; n < INSERT_COLUMNS.length; n++) {
+            sb.append(INSERT_COLUMNS[n]);
+            if (n < INSERT_COLUMNS.length - 1) {
+                sb.append(", ");
+            }
         }
+        sb.append(") VALUES (");
+        for (int n = 0; n < INSERT_COLUMNS.length; n++) {
+            sb.append("?");
+            if (n < INSERT_COLUMNS.length - 1) {
+                sb.append(", ");
+            }
+        }
+        sb.append(")");
         return sb.toString();
     }
 
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
+    private static String buildSearchSQL() {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
         for (int n = 0; n < SELECT_COLUMNS.length; n++) {
@@ -665,25 +1318,106 @@ public class Index {
             }
         }
         sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_DATA);
+        sb.append(" WHERE ");
+        sb.append(IndexColumns.DOCID);
+        sb.append(" IN (SELECT ");
+        sb.append(IndexColumns.DOCID);
+        sb.append(" FROM ");
         sb.append(Tables.TABLE_PREFS_INDEX);
         sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" MATCH ?) AND ");
+        sb.append(IndexColumns.LOCALE);
+        sb.append(" = ? AND ");
+        sb.append(IndexColumns.ENABLED);
+        sb.append(" = 1");
+        return sb.toString();
+    }
 
+    private static String buildSecondarySearchSQL() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT * FROM (");
+        sb.append(buildSearchSQL());
+        sb.append(" EXCEPT ");
+        sb.append(buildSearchSQL());
+        sb.append(") AS results ORDER BY ");
+        sb.append(buildOrderBy("results"));
         return sb.toString();
     }
 
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
-        final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
-        sb.append(" MATCH ");
-        DatabaseUtils.appendEscapedSQLString(sb,
-                buildSearchMatchStringForColumns(query, columnNames));
-        sb.append(" AND ");
-        sb.append(IndexColumns.LOCALE);
+    /**
+     * Build the ORDER BY terms of the search results, for a table or sub-query having the
+     * class name, key and rank columns.
+     */
+    private static String buildOrderBy(String table) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("(SELECT ");
+        sb.append(Tables.TABLE_SEARCH_CLICKS);
+        sb.append(".");
+        sb.append(ClicksColumns.POPULARITY);
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_SEARCH_CLICKS);
+        sb.append(" WHERE ");
+        sb.append(Tables.TABLE_SEARCH_CLICKS);
+        sb.append(".");
+        sb.append(ClicksColumns.CLASS_NAME);
         sb.append(" = ");
-        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
+        sb.append(table);
+        sb.append(".");
+        sb.append(IndexColumns.CLASS_NAME);
         sb.append(" AND ");
+        sb.append(Tables.TABLE_SEARCH_CLICKS);
+        sb.append(".");
+        sb.append(ClicksColumns.KEY);
+        sb.append(" = IFNULL(");
+        sb.append(table);
+        sb.append(".");
+        sb.append(IndexColumns.DATA_KEY_REF);
+        sb.append(", '')) DESC, ");
+        sb.append(table);
+        sb.append(".");
+        sb.append(IndexColumns.DATA_RANK);
+        return sb.toString();
+    }
+
+    private static String buildNearMatchesSQL() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
+            sb.append(SELECT_COLUMNS[n]);
+            if (n < SELECT_COLUMNS.length - 1) {
+                sb.append(", ");
+            }
+        }
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_DATA);
+        sb.append(" JOIN (SELECT ");
+        sb.append(TrigramsColumns.DOCID);
+        sb.append(" AS trigrams_docid, COUNT(*) AS score FROM ");
+        sb.append(Tables.TABLE_PREFS_TRIGRAMS);
+        sb.append(" WHERE ");
+        sb.append(TrigramsColumns.TRIGRAM);
+        sb.append(" IN (");
+        for (int n = 0; n < MAX_NEAR_MATCH_TRIGRAMS; n++) {
+            sb.append("?");
+            if (n < MAX_NEAR_MATCH_TRIGRAMS - 1) {
+                sb.append(", ");
+            }
+        }
+        sb.append(") GROUP BY ");
+        sb.append(TrigramsColumns.DOCID);
+        sb.append(") ON ");
+        sb.append(IndexColumns.DOCID);
+        sb.append(" = trigrams_docid WHERE ");
+        sb.append(IndexColumns.LOCALE);
+        sb.append(" = ? AND ");
         sb.append(IndexColumns.ENABLED);
-        sb.append(" = 1");
+        // score has no affinity, a text argument would always compare greater than it
+        sb.append(" = 1 AND score >= CAST(? AS INTEGER) ORDER BY score DESC, ");
+        sb.append(buildOrderBy(Tables.TABLE_PREFS_DATA));
+        sb.append(" LIMIT ");
+        sb.append(MAX_NEAR_MATCHES);
         return sb.toString();
     }
 
@@ -702,23 +1436,23 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
-            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
+    private void indexOneSearchIndexableData(IndexBatch batch, String localeStr,
+            SearchIndexableData data, Map<String, Set<String>> nonIndexableKeys) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(batch, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(batch, localeStr, (SearchIndexableRaw) data);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(IndexBatch batch, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(batch, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -733,7 +1467,8 @@ public class Index {
                 raw.intentTargetClass,
                 raw.enabled,
                 raw.key,
-                raw.userId);
+                raw.userId,
+                raw.packageName);
     }
 
     private static boolean isIndexableClass(final Class<?> clazz) {
@@ -751,55 +1486,75 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
-            SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
+    private void indexOneResource(IndexBatch batch, String localeStr,
+            SearchIndexableResource sir, Map<String, Set<String>> nonIndexableKeysFromResource) {
 
         if (sir == null) {
             Log.e(LOG_TAG, "Cannot index a null resource!");
             return;
         }
 
-        final List<String> nonIndexableKeys = new ArrayList<String>();
-
         if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
-            List<String> resNonIndxableKeys = nonIndexableKeysFromResource.get(sir.packageName);
-            if (resNonIndxableKeys != null && resNonIndxableKeys.size() > 0) {
-                nonIndexableKeys.addAll(resNonIndxableKeys);
+            Set<String> nonIndexableKeys = nonIndexableKeysFromResource.get(sir.packageName);
+            if (nonIndexableKeys == null) {
+                nonIndexableKeys = EMPTY_SET;
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            indexFromResource(sir.context, batch, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
-                    nonIndexableKeys);
+                    sir.packageName, nonIndexableKeys);
         } else {
             if (TextUtils.isEmpty(sir.className)) {
                 Log.w(LOG_TAG, "Cannot index an empty Search Provider name!");
                 return;
             }
 
-            final Class<?> clazz = getIndexableClass(sir.className);
-            if (clazz == null) {
-                Log.d(LOG_TAG, "SearchIndexableResource '" + sir.className +
-                        "' should implement the " + Indexable.class.getName() + " interface!");
-                return;
-            }
-
             // Will be non null only for a Local provider implementing a
             // SEARCH_INDEX_DATA_PROVIDER field
-            final Indexable.SearchIndexProvider provider = getSearchIndexProvider(clazz);
+            final Indexable.SearchIndexProvider provider = getSearchIndexProvider(sir.className);
             if (provider != null) {
+                Set<String> nonIndexableKeys = EMPTY_SET;
                 List<String> providerNonIndexableKeys = provider.getNonIndexableKeys(sir.context);
                 if (providerNonIndexableKeys != null && providerNonIndexableKeys.size() > 0) {
-                    nonIndexableKeys.addAll(providerNonIndexableKeys);
+                    nonIndexableKeys = new HashSet<String>(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
-                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
+                indexFromProvider(mContext, batch, localeStr, provider, sir.className,
+                        sir.iconResId, sir.rank, sir.enabled, sir.packageName, nonIndexableKeys);
+            }
+        }
+    }
+
+    /**
+     * Resolve the provider of an Indexable class the first time it is indexed, so that the
+     * fragment classes are only loaded when they are indexed or prewarmed.
+     *
+     * @return the provider, or null if the class has none.
+     */
+    public static Indexable.SearchIndexProvider getSearchIndexProvider(String className) {
+        synchronized (sSearchIndexProviders) {
+            if (sSearchIndexProviders.containsKey(className)) {
+                return sSearchIndexProviders.get(className);
             }
         }
+
+        Indexable.SearchIndexProvider provider = null;
+        final Class<?> clazz = getIndexableClass(className);
+        if (clazz != null) {
+            provider = getSearchIndexProvider(clazz);
+        } else {
+            Log.d(LOG_TAG, "SearchIndexableResource '" + className +
+                    "' should implement the " + Indexable.class.getName() + " interface!");
+        }
+
+        synchronized (sSearchIndexProviders) {
+            sSearchIndexProviders.put(className, provider);
+        }
+        return provider;
     }
 
-    private Indexable.SearchIndexProvider getSearchIndexProvider(final Class<?> clazz) {
+    private static Indexable.SearchIndexProvider getSearchIndexProvider(final Class<?> clazz) {
         try {
             final Field f = clazz.getField(FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER);
             return (Indexable.SearchIndexProvider) f.get(null);
@@ -819,10 +1574,10 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, IndexBatch batch, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
-           List<String> nonIndexableKeys) {
+           String packageName, Set<String> nonIndexableKeys) {
 
         XmlResourceParser parser = null;
         try {
@@ -859,10 +1614,12 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(batch, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
-                        key, -1 /* default user id */);
+                        key, -1 /* default user id */, packageName);
+            } else {
+                batch.skippedRows++;
             }
 
             while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
@@ -875,6 +1632,7 @@ public class Index {
 
                 key = getDataKey(context, attrs);
                 if (nonIndexableKeys.contains(key)) {
+                    batch.skippedRows++;
                     continue;
                 }
 
@@ -891,10 +1649,10 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(batch, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
-                            true, key, -1 /* default user id */);
+                            true, key, -1 /* default user id */, packageName);
                 } else {
                     String summaryOn = getDataSummaryOn(context, attrs);
                     String summaryOff = getDataSummaryOff(context, attrs);
@@ -903,10 +1661,10 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(batch, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
-                            true, key, -1 /* default user id */);
+                            true, key, -1 /* default user id */, packageName);
                 }
             }
 
@@ -919,9 +1677,9 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, IndexBatch batch, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
-            boolean enabled, List<String> nonIndexableKeys) {
+            boolean enabled, String packageName, Set<String> nonIndexableKeys) {
 
         if (provider == null) {
             Log.w(LOG_TAG, "Cannot find provider: " + className);
@@ -941,10 +1699,11 @@ public class Index {
                 }
 
                 if (nonIndexableKeys.contains(raw.key)) {
+                    batch.skippedRows++;
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(batch, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -959,7 +1718,8 @@ public class Index {
                         raw.intentTargetClass,
                         raw.enabled,
                         raw.key,
-                        raw.userId);
+                        raw.userId,
+                        packageName);
             }
         }
 
@@ -980,20 +1740,20 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, batch, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
-                        item.intentTargetClass, nonIndexableKeys);
+                        item.intentTargetClass, packageName, nonIndexableKeys);
             }
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(IndexBatch batch, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
             String intentAction, String intentTargetPackage, String intentTargetClass,
-            boolean enabled, String key, int userId) {
+            boolean enabled, String key, int userId, String packageName) {
 
         final String updatedTitle = normalizeHyphen(title);
         final String updatedSummaryOn = normalizeHyphen(summaryOn);
@@ -1003,32 +1763,32 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(batch, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
                 rank, keywords, intentAction, intentTargetPackage, intentTargetClass, enabled,
-                key, userId);
+                key, userId, packageName);
     }
 
     private static String normalizeHyphen(String input) {
         return (input != null) ? input.replaceAll(NON_BREAKING_HYPHEN, HYPHEN) : EMPTY;
     }
 
-    private static String normalizeString(String input) {
+    static String normalizeString(String input) {
         final String nohyphen = (input != null) ? input.replaceAll(HYPHEN, EMPTY) : EMPTY;
         final String normalized = Normalizer.normalize(nohyphen, Normalizer.Form.NFD);
 
         return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private void updateOneRow(IndexBatch batch, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
             String className, String screenTitle, int iconResId, int rank, String keywords,
             String intentAction, String intentTargetPackage, String intentTargetClass,
-            boolean enabled, String key, int userId) {
+            boolean enabled, String key, int userId, String packageName) {
 
         if (TextUtils.isEmpty(updatedTitle)) {
             return;
@@ -1040,29 +1800,11 @@ public class Index {
         sb.append(screenTitle);
         int docId = sb.toString().hashCode();
 
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        batch.rows.add(new IndexRow(docId, locale, rank, updatedTitle, normalizedTitle,
+                updatedSummaryOn, normalizedSummaryOn, updatedSummaryOff, normalizedSummaryOff,
+                entries, keywords, className, screenTitle, intentAction, intentTargetPackage,
+                intentTargetClass, iconResId, enabled, key, userId, packageName,
+                Trigrams.of(normalizedTitle, keywords)));
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1153,96 +1895,410 @@ public class Index {
         }
    }
 
+    /**
+     * Fetch the data of one remote provider. Its deadline starts with the fetch, not when it is
+     * queued, so that providers waiting for a thread are not penalized by slow ones.
+     */
+    private class ProviderFetch implements Callable<ProviderData> {
+        public final String packageName;
+        public final String authority;
+        public final CancellationSignal cancellationSignal = new CancellationSignal();
+        // Uptime of the start and of the end of the fetch, 0 until they happen
+        public volatile long startTime;
+        public volatile long endTime;
+
+        public ProviderFetch(String packageName, String authority) {
+            this.packageName = packageName;
+            this.authority = authority;
+        }
+
+        @Override
+        public ProviderData call() {
+            startTime = SystemClock.uptimeMillis();
+            try {
+                return fetchRemoteProvider(packageName, authority, cancellationSignal);
+            } finally {
+                endTime = SystemClock.uptimeMillis();
+            }
+        }
+    }
+
+    /**
+     * A private class for discovering the well known SearchIndexablesProviders and fetching their
+     * data in parallel, without blocking the UI thread. A slow or hung provider is given up after
+     * PROVIDER_TIMEOUT_MILLIS without delaying the others.
+     */
+    private class DiscoverProvidersTask extends AsyncTask<Void, Void, List<ProviderData>> {
+        // False if some provider could not be fetched
+        private boolean mComplete = true;
+
+        @Override
+        protected List<ProviderData> doInBackground(Void... params) {
+            final long deadline = SystemClock.uptimeMillis() + DISCOVERY_TIMEOUT_MILLIS;
+
+            final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
+            final List<ResolveInfo> list =
+                    mContext.getPackageManager().queryIntentContentProviders(intent, 0);
+
+            final ExecutorService executor = getProviderExecutor();
+            final List<ProviderFetch> fetches = new ArrayList<ProviderFetch>();
+            final List<Future<ProviderData>> futures = new ArrayList<Future<ProviderData>>();
+            final int size = list.size();
+            for (int n = 0; n < size; n++) {
+                final ResolveInfo info = list.get(n);
+                if (!isWellKnownProvider(info)) {
+                    continue;
+                }
+                final ProviderFetch fetch = new ProviderFetch(info.providerInfo.packageName,
+                        info.providerInfo.authority);
+                fetches.add(fetch);
+                futures.add(executor.submit(fetch));
+            }
+
+            final List<ProviderData> result = new ArrayList<ProviderData>();
+            final int count = fetches.size();
+            final List<IndexStats.Fetch> stats = new ArrayList<IndexStats.Fetch>(count);
+            for (int n = 0; n < count; n++) {
+                final ProviderFetch fetch = fetches.get(n);
+                final ProviderData data = getProviderData(fetch, futures.get(n), deadline);
+                if (data != null) {
+                    result.add(data);
+                } else {
+                    mComplete = false;
+                }
+
+                final long endTime = (fetch.endTime > 0) ? fetch.endTime :
+                        SystemClock.uptimeMillis();
+                final long millis = (fetch.startTime > 0) ? endTime - fetch.startTime : 0;
+                stats.add(new IndexStats.Fetch(fetch.authority, millis * 1000000L,
+                        (data != null) ? data.indexables.size() : 0, data != null));
+            }
+            mStats.setFetches(stats);
+            return result;
+        }
+
+        private ProviderData getProviderData(ProviderFetch fetch, Future<ProviderData> future,
+                long discoveryDeadline) {
+            while (true) {
+                final long now = SystemClock.uptimeMillis();
+                final long startTime = fetch.startTime;
+                final long deadline = (startTime > 0) ?
+                        Math.min(startTime + PROVIDER_TIMEOUT_MILLIS, discoveryDeadline) :
+                        discoveryDeadline;
+                if (now >= deadline) {
+                    break;
+                }
+                try {
+                    // Until the fetch starts, wait at most for the time it would be given
+                    return future.get((startTime > 0) ? deadline - now :
+                            Math.min(deadline - now, PROVIDER_TIMEOUT_MILLIS),
+                            TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Check again with the deadline of the fetch, now that it may have started
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Cannot fetch provider: " + fetch.authority, e.getCause());
+                    return null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            Log.w(LOG_TAG, "Timed out fetching provider: " + fetch.authority);
+            fetch.cancellationSignal.cancel();
+            future.cancel(true);
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(List<ProviderData> result) {
+            mDiscoverProvidersTask = null;
+
+            final int count = result.size();
+            for (int n = 0; n < count; n++) {
+                final ProviderData data = result.get(n);
+                final int indexablesCount = data.indexables.size();
+                for (int i = 0; i < indexablesCount; i++) {
+                    addIndexableData(data.indexables.get(i));
+                }
+                addNonIndexableKeys(data.packageName, data.nonIndexableKeys);
+            }
+
+            synchronized (mDataToProcess) {
+                // Without the data of every provider, we cannot tell which indexables are gone
+                mDataToProcess.fullIndex = mComplete;
+            }
+            updateInternal(true);
+        }
+    }
+
     /**
      * A private class for updating the Index database
      */
     private class UpdateIndexTask extends AsyncTask<UpdateData, Integer, Void> {
+        // Only the update started by update() ends PHASE_INDEX_UPDATE
+        private final boolean mProvidersUpdate;
+
+        UpdateIndexTask(boolean providersUpdate) {
+            mProvidersUpdate = providersUpdate;
+        }
 
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
-            mIsAvailable.set(false);
+            // Searches keep being served from the previous generation during the update
+            mUpdatesInProgress.incrementAndGet();
         }
 
         @Override
         protected void onPostExecute(Void aVoid) {
             super.onPostExecute(aVoid);
+            mUpdatesInProgress.decrementAndGet();
             mIsAvailable.set(true);
+            if (mProvidersUpdate) {
+                LaunchTrace.endAsync(LaunchTrace.PHASE_INDEX_UPDATE);
+            }
         }
 
         @Override
         protected Void doInBackground(UpdateData... params) {
-            final List<SearchIndexableData> dataToUpdate = params[0].dataToUpdate;
-            final List<SearchIndexableData> dataToDelete = params[0].dataToDelete;
-            final Map<String, List<String>> nonIndexableKeys = params[0].nonIndexableKeys;
+            final SQLiteDatabase database = getWritableDatabase();
+            if (database == null) {
+                Log.e(LOG_TAG, "Cannot update Index as I cannot get a writable database");
+                return null;
+            }
+            updateDatabase(database, params[0]);
+            return null;
+        }
 
-            final boolean forceUpdate = params[0].forceUpdate;
+        private boolean updateDatabase(SQLiteDatabase database, UpdateData data) {
+            final List<SearchIndexableData> dataToUpdate = data.dataToUpdate;
+            final List<SearchIndexableData> dataToDelete = data.dataToDelete;
+            final Map<String, Set<String>> nonIndexableKeys = data.nonIndexableKeys;
 
-            SQLiteDatabase database = null;
+            final boolean forceUpdate = data.forceUpdate;
+            final boolean fullIndex = data.fullIndex;
 
+            boolean result = false;
+            final String localeStr = Locale.getDefault().toString();
+            final IndexStats.Run run = new IndexStats.Run(localeStr, forceUpdate, fullIndex);
+            final long start = System.nanoTime();
             try {
-                database = getWritableDatabase();
-                if (database == null) {
-                    Log.e(LOG_TAG, "Cannot update Index as I cannot get a writable database");
-                    return null;
-                }
-                final String localeStr = Locale.getDefault().toString();
                 database.beginTransaction();
                 if (dataToDelete.size() > 0) {
                     processDataToDelete(database, localeStr, dataToDelete);
                 }
                 if (dataToUpdate.size() > 0) {
                     processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+                            forceUpdate, fullIndex, run);
                 }
                 database.setTransactionSuccessful();
+                result = true;
             } catch (SQLiteFullException e) {
                     Log.e(LOG_TAG, "SQLite database is full." + e.toString());
             } catch (SQLiteException e) {
                     Log.e(LOG_TAG, e.toString());
             } finally {
                 try {
-                    if (database != null)
-                        database.endTransaction();
+                    database.endTransaction();
                 } catch (SQLiteFullException e) {
                     Log.e(LOG_TAG, "SQLite database is full." + e.toString());
+                    result = false;
                 } catch (SQLiteException e) {
                     Log.e(LOG_TAG, e.toString());
+                    result = false;
                 }
             }
 
-            return null;
+            run.transactionNanos = System.nanoTime() - start;
+            run.successful = result;
+            mStats.addRun(run);
+
+            if (result) {
+                mIndexedLocale = localeStr;
+                invalidatePrefixIndex();
+            }
+            return result;
         }
 
         private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
-                List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
-
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
-                return true;
-            }
+                List<SearchIndexableData> dataToUpdate, Map<String, Set<String>> nonIndexableKeys,
+                boolean forceUpdate, boolean fullIndex, IndexStats.Run run) {
 
             boolean result = false;
             final long current = System.currentTimeMillis();
 
+            // A forced update always indexes everything it has been given. Otherwise, only the
+            // indexables whose fingerprint changed since the last time they were indexed for
+            // this locale need to be processed.
+            Map<String, String> fingerprints = null;
+            Set<String> changed = null;
+            if (!forceUpdate) {
+                fingerprints = computeFingerprints(localeStr, dataToUpdate, nonIndexableKeys);
+                final Map<String, String> stored = getStoredFingerprints(database, localeStr);
+
+                changed = new HashSet<String>();
+                for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                    if (!entry.getValue().equals(stored.get(entry.getKey()))) {
+                        changed.add(entry.getKey());
+                    }
+                }
+
+                if (fullIndex) {
+                    // Indexables that are not there anymore (removed class, uninstalled
+                    // provider...) need to go away.
+                    for (String indexable : stored.keySet()) {
+                        if (!fingerprints.containsKey(indexable)) {
+                            deleteIndexable(database, localeStr, indexable);
+                            deleteFingerprint(database, localeStr, indexable);
+                        }
+                    }
+                }
+
+                if (changed.isEmpty()) {
+                    Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
+                    return true;
+                }
+
+                for (String indexable : changed) {
+                    deleteIndexable(database, localeStr, indexable);
+                }
+            }
+
+            final List<SearchIndexableData> dataToIndex = new ArrayList<SearchIndexableData>();
             final int count = dataToUpdate.size();
             for (int n = 0; n < count; n++) {
                 final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG,
-                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
+                if (changed != null && !changed.contains(getIndexableId(data))) {
+                    continue;
+                }
+                dataToIndex.add(data);
+            }
+            final int rowCount = indexAll(database, localeStr, dataToIndex, nonIndexableKeys,
+                    run);
+
+            if (changed != null) {
+                for (String indexable : changed) {
+                    saveFingerprint(database, localeStr, indexable, fingerprints.get(indexable));
                 }
             }
 
             final long now = System.currentTimeMillis();
             Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+                    (now - current) + " millis for " + rowCount + " rows" +
+                    ((changed != null) ? " (" + changed.size() + " changed indexables)" : ""));
             return result;
         }
 
+        /**
+         * Index some data. The XML resources of Settings are parsed into rows by the indexing
+         * threads, while the current thread, which owns the database transaction, writes the
+         * rows as they come. The other data, which calls into the SearchIndexProviders or comes
+         * from the remote providers, is parsed serially by the current thread, in order, as the
+         * providers have never been required to be thread safe.
+         *
+         * @return the number of rows written.
+         */
+        private int indexAll(SQLiteDatabase database, final String localeStr,
+                List<SearchIndexableData> dataToIndex,
+                final Map<String, Set<String>> nonIndexableKeys, IndexStats.Run run) {
+            final int count = dataToIndex.size();
+            if (count == 0) {
+                return 0;
+            }
+
+            // Null for the data parsed by the current thread
+            final List<Future<IndexBatch>> batches = new ArrayList<Future<IndexBatch>>(count);
+            for (int n = 0; n < count; n++) {
+                final SearchIndexableData data = dataToIndex.get(n);
+                if (!isLocalXmlResource(data)) {
+                    batches.add(null);
+                    continue;
+                }
+                batches.add(getIndexingExecutor().submit(new Callable<IndexBatch>() {
+                    @Override
+                    public IndexBatch call() {
+                        return parseBatch(localeStr, data, nonIndexableKeys);
+                    }
+                }));
+            }
+
+            int result = 0;
+            final SQLiteStatement statement = database.compileStatement(INSERT_INDEX_ROW_SQL);
+            final SQLiteStatement trigramsStatement = database.compileStatement(INSERT_TRIGRAM_SQL);
+            try {
+                // Batches are written in the order of the data so that the content of the Index
+                // does not depend on how the parsing has been scheduled.
+                for (int n = 0; n < count; n++) {
+                    final SearchIndexableData data = dataToIndex.get(n);
+                    final Future<IndexBatch> future = batches.get(n);
+                    final IndexBatch batch;
+                    if (future == null) {
+                        batch = parseBatch(localeStr, data, nonIndexableKeys);
+                    } else {
+                        try {
+                            batch = future.get();
+                        } catch (InterruptedException e) {
+                            Log.w(LOG_TAG, "Interrupted while indexing locale: " + localeStr);
+                            Thread.currentThread().interrupt();
+                            break;
+                        } catch (ExecutionException e) {
+                            Log.e(LOG_TAG, "Cannot index: " + data.className +
+                                    " for locale: " + localeStr, e.getCause());
+                            continue;
+                        }
+                    }
+                    final List<IndexRow> rows = batch.rows;
+                    final int size = rows.size();
+                    for (int i = 0; i < size; i++) {
+                        final IndexRow row = rows.get(i);
+                        row.bindTo(statement);
+                        statement.executeInsert();
+                        row.insertTrigrams(trigramsStatement);
+                    }
+                    result += size;
+
+                    final String indexable = getIndexableId(data);
+                    run.addUnit((indexable != null) ? indexable : String.valueOf(data.className),
+                            batch.parseNanos, size, batch.skippedRows);
+                }
+            } finally {
+                statement.close();
+                trigramsStatement.close();
+                // Drop the parsing left if the update has been interrupted
+                for (Future<IndexBatch> future : batches) {
+                    if (future != null) {
+                        future.cancel(true);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return true if the data is an XML resource of Settings, which can be parsed without
+         * calling into a SearchIndexProvider.
+         */
+        private boolean isLocalXmlResource(SearchIndexableData data) {
+            return (data instanceof SearchIndexableResource)
+                    && ((SearchIndexableResource) data).xmlResId
+                            > SearchIndexableResources.NO_DATA_RES_ID
+                    && data.context == mContext;
+        }
+
+        private IndexBatch parseBatch(String localeStr, SearchIndexableData data,
+                Map<String, Set<String>> nonIndexableKeys) {
+            final IndexBatch batch = new IndexBatch();
+            final long start = System.nanoTime();
+            try {
+                indexOneSearchIndexableData(batch, localeStr, data, nonIndexableKeys);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Cannot index: " + data.className + " for locale: " +
+                        localeStr, e);
+            }
+            batch.parseNanos = System.nanoTime() - start;
+            return batch;
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
@@ -1277,21 +2333,34 @@ public class Index {
             final String whereClause = columName + "=?";
             final String[] whereArgs = new String[] { value };
 
-            return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
+            return database.delete(Tables.TABLE_PREFS_DATA, whereClause, whereArgs);
+        }
+
+        private int deleteIndexable(SQLiteDatabase database, String localeStr,
+                String indexable) {
+            // An indexable is either one of our own fragment classes or a remote package
+            final String whereClause = IndexColumns.LOCALE + " = ? AND (" +
+                    IndexColumns.PACKAGE_NAME + " = ? OR (" +
+                    IndexColumns.PACKAGE_NAME + " = ? AND " +
+                    IndexColumns.CLASS_NAME + " = ?))";
+            final String[] whereArgs = new String[] {
+                    localeStr, indexable, mContext.getPackageName(), indexable };
+
+            return database.delete(Tables.TABLE_PREFS_DATA, whereClause, whereArgs);
         }
 
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
+        private Map<String, String> getStoredFingerprints(SQLiteDatabase database,
+                String localeStr) {
+            final Map<String, String> result = new HashMap<String, String>();
             Cursor cursor = null;
-            boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
             try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
+                cursor = database.query(Tables.TABLE_META_INDEX,
+                        new String[] { MetaColumns.INDEXABLE, MetaColumns.FINGERPRINT },
+                        MetaColumns.INDEXABLE + " IS NOT NULL AND " + MetaColumns.LOCALE + " = ?",
+                        new String[] { localeStr }, null, null, null);
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0), cursor.getString(1));
+                }
             } finally {
                 if (cursor != null) {
                     cursor.close();
@@ -1299,50 +2368,198 @@ public class Index {
             }
             return result;
         }
+
+        private void saveFingerprint(SQLiteDatabase database, String localeStr,
+                String indexable, String fingerprint) {
+            deleteFingerprint(database, localeStr, indexable);
+
+            final ContentValues values = new ContentValues();
+            values.put(MetaColumns.BUILD, Build.VERSION.INCREMENTAL);
+            values.put(MetaColumns.INDEXABLE, indexable);
+            values.put(MetaColumns.LOCALE, localeStr);
+            values.put(MetaColumns.FINGERPRINT, fingerprint);
+            database.insertOrThrow(Tables.TABLE_META_INDEX, null, values);
+        }
+
+        private int deleteFingerprint(SQLiteDatabase database, String localeStr,
+                String indexable) {
+            return database.delete(Tables.TABLE_META_INDEX,
+                    MetaColumns.INDEXABLE + " = ? AND " + MetaColumns.LOCALE + " = ?",
+                    new String[] { indexable, localeStr });
+        }
+    }
+
+    /**
+     * Return the id used for fingerprinting some data: the class name for our own
+     * {@link SearchIndexableResources}, the package name for a remote provider.
+     */
+    private String getIndexableId(SearchIndexableData data) {
+        if (mContext.getPackageName().equals(data.packageName)
+                && !TextUtils.isEmpty(data.className)) {
+            return data.className;
+        }
+        return data.packageName;
+    }
+
+    /**
+     * Compute the fingerprints of the indexables referenced by some data to update.
+     *
+     * A fingerprint is made of the package version, the locale and a hash of the data itself
+     * (XML resource IDs, raw data and non indexable keys). Packages from the system image
+     * cannot be upgraded without an OTA, so the build version is used for them too.
+     */
+    private Map<String, String> computeFingerprints(String localeStr,
+            List<SearchIndexableData> dataToUpdate, Map<String, Set<String>> nonIndexableKeys) {
+        final Map<String, Integer> hashes = new HashMap<String, Integer>();
+        final Map<String, String> packages = new HashMap<String, String>();
+
+        final int count = dataToUpdate.size();
+        for (int n = 0; n < count; n++) {
+            final SearchIndexableData data = dataToUpdate.get(n);
+            final String indexable = getIndexableId(data);
+            if (indexable == null) {
+                continue;
+            }
+            final Integer previous = hashes.get(indexable);
+            int hash = (previous != null) ? previous : 0;
+            hash = 31 * hash + getDataHash(data);
+            hashes.put(indexable, hash);
+            packages.put(indexable, data.packageName);
+        }
+
+        final PackageManager pm = mContext.getPackageManager();
+        final Map<String, String> versions = new HashMap<String, String>();
+        final Map<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<String, Integer> entry : hashes.entrySet()) {
+            final String indexable = entry.getKey();
+            final String packageName = packages.get(indexable);
+
+            String version = versions.get(packageName);
+            if (version == null) {
+                version = getPackageVersion(pm, packageName);
+                versions.put(packageName, version);
+            }
+
+            int hash = entry.getValue();
+            final Set<String> keys = nonIndexableKeys.get(packageName);
+            if (keys != null) {
+                hash = 31 * hash + keys.hashCode();
+            }
+
+            result.put(indexable, version + "/" + localeStr + "/" + Integer.toHexString(hash));
+        }
+        return result;
+    }
+
+    private static String getPackageVersion(PackageManager pm, String packageName) {
+        try {
+            final PackageInfo info = pm.getPackageInfo(packageName, 0);
+            final boolean isFromSystemImage =
+                    (info.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0 &&
+                    (info.applicationInfo.flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) == 0;
+            return info.versionCode + "/" + info.lastUpdateTime +
+                    (isFromSystemImage ? "/" + Build.VERSION.INCREMENTAL : "");
+        } catch (PackageManager.NameNotFoundException e) {
+            return "0";
+        }
+    }
+
+    private static int getDataHash(SearchIndexableData data) {
+        int hash = 17;
+        hash = 31 * hash + data.rank;
+        hash = 31 * hash + data.iconResId;
+        hash = 31 * hash + (data.enabled ? 1 : 0);
+        hash = 31 * hash + hashOf(data.className);
+        hash = 31 * hash + hashOf(data.key);
+        hash = 31 * hash + hashOf(data.intentAction);
+        hash = 31 * hash + hashOf(data.intentTargetPackage);
+        hash = 31 * hash + hashOf(data.intentTargetClass);
+        if (data instanceof SearchIndexableResource) {
+            hash = 31 * hash + ((SearchIndexableResource) data).xmlResId;
+        } else if (data instanceof SearchIndexableRaw) {
+            final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+            hash = 31 * hash + hashOf(raw.title);
+            hash = 31 * hash + hashOf(raw.summaryOn);
+            hash = 31 * hash + hashOf(raw.summaryOff);
+            hash = 31 * hash + hashOf(raw.entries);
+            hash = 31 * hash + hashOf(raw.keywords);
+            hash = 31 * hash + hashOf(raw.screenTitle);
+        }
+        return hash;
+    }
+
+    private static int hashOf(String value) {
+        return (value != null) ? value.hashCode() : 0;
     }
 
     /**
      * A basic AsyncTask for saving a Search query into the database
      */
-    private class SaveSearchQueryTask extends AsyncTask<String, Void, Long> {
+    private class SaveSearchResultClickTask extends AsyncTask<String, Void, Void> {
 
         @Override
-        protected Long doInBackground(String... params) {
+        protected Void doInBackground(String... params) {
+            final String className = params[0];
+            final String key = PopularityScores.getKey(params[1]);
             final long now = new Date().getTime();
 
+            final PopularityScores scores = getPopularityScores();
+            if (scores == null) {
+                return null;
+            }
+            final double popularity = scores.addClick(className, key, now);
+
             final ContentValues values = new ContentValues();
-            values.put(IndexDatabaseHelper.SavedQueriesColums.QUERY, params[0]);
-            values.put(IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP, now);
+            values.put(ClicksColumns.CLASS_NAME, className);
+            values.put(ClicksColumns.KEY, key);
+            values.put(ClicksColumns.TIME_STAMP, now);
+            values.put(ClicksColumns.POPULARITY, popularity);
 
             final SQLiteDatabase database = getWritableDatabase();
             if (database == null) {
-                Log.e(LOG_TAG, "Cannot save Search queries as I cannot get a writable database");
-                return -1L;
+                Log.e(LOG_TAG, "Cannot save Search result click as I cannot get a writable " +
+                        "database");
+                return null;
             }
 
-            long lastInsertedRowId = -1L;
             try {
-                // First, delete all saved queries that are the same
-                database.delete(Tables.TABLE_SAVED_QUERIES,
-                        IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?",
-                        new String[] { params[0] });
-
-                // Second, insert the saved query
-                lastInsertedRowId =
-                        database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
-
-                // Last, remove "old" saved queries
-                final long delta = lastInsertedRowId - MAX_SAVED_SEARCH_QUERY;
-                if (delta > 0) {
-                    int count = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
-                            new String[] { Long.toString(delta) });
-                    Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
-                }
-            } catch (Exception e) {
-                Log.d(LOG_TAG, "Cannot update saved Search queries", e);
+                database.insertWithOnConflict(Tables.TABLE_SEARCH_CLICKS, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            } catch (SQLiteException e) {
+                Log.d(LOG_TAG, "Cannot update Search result clicks", e);
             }
+            return null;
+        }
+    }
+
+    /**
+     * Write the saved queries that are not in the database yet. This is blocking, see
+     * SaveSearchQueryTask.
+     */
+    void writeSavedQueries() {
+        if (!mSavedQueries.hasPendingWrites()) {
+            return;
+        }
+
+        final SQLiteDatabase database = getWritableDatabase();
+        if (database == null) {
+            Log.e(LOG_TAG, "Cannot save Search queries as I cannot get a writable database");
+            return;
+        }
+
+        try {
+            mSavedQueries.write(database);
+        } catch (SQLiteException e) {
+            Log.d(LOG_TAG, "Cannot update saved Search queries", e);
+        }
+    }
 
-            return lastInsertedRowId;
+    private class SaveSearchQueryTask extends AsyncTask<Void, Void, Void> {
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            writeSavedQueries();
+            return null;
         }
     }
 }
@@ -28,12 +28,15 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 119;
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
+        public static final String TABLE_PREFS_DATA = "prefs_data";
+        public static final String TABLE_PREFS_TRIGRAMS = "prefs_trigrams";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_SEARCH_CLICKS = "search_clicks";
     }
 
     public interface IndexColumns {
@@ -57,10 +60,26 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String ENABLED = "enabled";
         public static final String DATA_KEY_REF = "data_key_reference";
         public static final String USER_ID = "user_id";
+        public static final String PACKAGE_NAME = "package_name";
+    }
+
+    public interface TrigramsColumns {
+        public static final String TRIGRAM = "trigram";
+        public static final String DOCID = "docid";
+    }
+
+    public interface ClicksColumns {
+        public static final String CLASS_NAME = "class_name";
+        public static final String KEY = "data_key_reference";
+        public static final String TIME_STAMP = "timestamp";
+        public static final String POPULARITY = "popularity";
     }
 
     public interface MetaColumns {
         public static final String BUILD = "build";
+        public static final String INDEXABLE = "indexable";
+        public static final String LOCALE = "locale";
+        public static final String FINGERPRINT = "fingerprint";
     }
 
     public interface SavedQueriesColums  {
@@ -68,52 +87,193 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String TIME_STAMP = "timestamp";
     }
 
-    private static final String CREATE_INDEX_TABLE =
-            "CREATE VIRTUAL TABLE " + Tables.TABLE_PREFS_INDEX + " USING fts4" +
+    // The data of the Index is stored in a regular table, the full-text index only covers the
+    // searchable columns and gets their content from the data table (see "External Content
+    // FTS4 Tables" in the SQLite documentation).
+    private static final String CREATE_DATA_TABLE =
+            "CREATE TABLE " + Tables.TABLE_PREFS_DATA +
                     "(" +
-                    IndexColumns.LOCALE +
+                    IndexColumns.DOCID + " INTEGER PRIMARY KEY" +
                     ", " +
-                    IndexColumns.DATA_RANK +
+                    IndexColumns.LOCALE + " TEXT" +
                     ", " +
-                    IndexColumns.DATA_TITLE +
+                    IndexColumns.DATA_RANK + " INTEGER" +
                     ", " +
-                    IndexColumns.DATA_TITLE_NORMALIZED +
+                    IndexColumns.DATA_TITLE + " TEXT" +
                     ", " +
-                    IndexColumns.DATA_SUMMARY_ON +
+                    IndexColumns.DATA_TITLE_NORMALIZED + " TEXT" +
                     ", " +
-                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED +
+                    IndexColumns.DATA_SUMMARY_ON + " TEXT" +
                     ", " +
-                    IndexColumns.DATA_SUMMARY_OFF +
+                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED + " TEXT" +
                     ", " +
-                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED +
+                    IndexColumns.DATA_SUMMARY_OFF + " TEXT" +
                     ", " +
-                    IndexColumns.DATA_ENTRIES +
+                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + " TEXT" +
+                    ", " +
+                    IndexColumns.DATA_ENTRIES + " TEXT" +
+                    ", " +
+                    IndexColumns.DATA_KEYWORDS + " TEXT" +
                     ", " +
-                    IndexColumns.DATA_KEYWORDS +
+                    IndexColumns.SCREEN_TITLE + " TEXT" +
                     ", " +
-                    IndexColumns.SCREEN_TITLE +
+                    IndexColumns.CLASS_NAME + " TEXT" +
                     ", " +
-                    IndexColumns.CLASS_NAME +
+                    IndexColumns.ICON + " INTEGER" +
                     ", " +
-                    IndexColumns.ICON +
+                    IndexColumns.INTENT_ACTION + " TEXT" +
                     ", " +
-                    IndexColumns.INTENT_ACTION +
+                    IndexColumns.INTENT_TARGET_PACKAGE + " TEXT" +
                     ", " +
-                    IndexColumns.INTENT_TARGET_PACKAGE +
+                    IndexColumns.INTENT_TARGET_CLASS + " TEXT" +
                     ", " +
-                    IndexColumns.INTENT_TARGET_CLASS +
+                    IndexColumns.ENABLED + " INTEGER" +
+                    ", " +
+                    IndexColumns.DATA_KEY_REF + " TEXT" +
+                    ", " +
+                    IndexColumns.USER_ID + " INTEGER" +
+                    ", " +
+                    IndexColumns.PACKAGE_NAME + " TEXT" +
+                    ")";
+
+    // Searchable columns of the full-text index
+    private static final String INDEX_COLUMNS =
+            IndexColumns.DATA_TITLE +
                     ", " +
-                    IndexColumns.ENABLED +
+                    IndexColumns.DATA_TITLE_NORMALIZED +
+                    ", " +
+                    IndexColumns.DATA_SUMMARY_ON +
+                    ", " +
+                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED +
+                    ", " +
+                    IndexColumns.DATA_SUMMARY_OFF +
+                    ", " +
+                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED +
+                    ", " +
+                    IndexColumns.DATA_ENTRIES +
+                    ", " +
+                    IndexColumns.DATA_KEYWORDS;
+
+    private static final String NEW_INDEX_COLUMNS =
+            "new." + IndexColumns.DATA_TITLE +
+                    ", new." +
+                    IndexColumns.DATA_TITLE_NORMALIZED +
+                    ", new." +
+                    IndexColumns.DATA_SUMMARY_ON +
+                    ", new." +
+                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED +
+                    ", new." +
+                    IndexColumns.DATA_SUMMARY_OFF +
+                    ", new." +
+                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED +
+                    ", new." +
+                    IndexColumns.DATA_ENTRIES +
+                    ", new." +
+                    IndexColumns.DATA_KEYWORDS;
+
+    // Prefix indexes make the as-you-type queries on short prefixes index lookups
+    private static final String CREATE_INDEX_TABLE =
+            "CREATE VIRTUAL TABLE " + Tables.TABLE_PREFS_INDEX + " USING fts4" +
+                    "(" +
+                    INDEX_COLUMNS +
                     ", " +
-                    IndexColumns.DATA_KEY_REF +
+                    "content=\"" + Tables.TABLE_PREFS_DATA + "\"" +
                     ", " +
-                    IndexColumns.USER_ID +
+                    "prefix=\"1,2,3\"" +
                     ");";
 
+    // Keep the full-text index in sync with the data table. Replacing a row of the data table
+    // fires the delete trigger as recursive triggers are enabled, see onConfigure().
+    private static final String CREATE_DATA_INSERT_TRIGGER =
+            "CREATE TRIGGER " + Tables.TABLE_PREFS_DATA + "_ai" +
+                    " AFTER INSERT ON " + Tables.TABLE_PREFS_DATA +
+                    " BEGIN INSERT INTO " + Tables.TABLE_PREFS_INDEX +
+                    "(" + IndexColumns.DOCID + ", " + INDEX_COLUMNS + ")" +
+                    " VALUES (new." + IndexColumns.DOCID + ", " + NEW_INDEX_COLUMNS + ");" +
+                    " END";
+
+    private static final String CREATE_DATA_DELETE_TRIGGER =
+            "CREATE TRIGGER " + Tables.TABLE_PREFS_DATA + "_bd" +
+                    " BEFORE DELETE ON " + Tables.TABLE_PREFS_DATA +
+                    " BEGIN DELETE FROM " + Tables.TABLE_PREFS_INDEX +
+                    " WHERE " + IndexColumns.DOCID + " = old." + IndexColumns.DOCID + ";" +
+                    " END";
+
+    private static final String CREATE_DATA_UPDATE_TRIGGERS[] = {
+            "CREATE TRIGGER " + Tables.TABLE_PREFS_DATA + "_bu" +
+                    " BEFORE UPDATE ON " + Tables.TABLE_PREFS_DATA +
+                    " BEGIN DELETE FROM " + Tables.TABLE_PREFS_INDEX +
+                    " WHERE " + IndexColumns.DOCID + " = old." + IndexColumns.DOCID + ";" +
+                    " END",
+            "CREATE TRIGGER " + Tables.TABLE_PREFS_DATA + "_au" +
+                    " AFTER UPDATE ON " + Tables.TABLE_PREFS_DATA +
+                    " BEGIN INSERT INTO " + Tables.TABLE_PREFS_INDEX +
+                    "(" + IndexColumns.DOCID + ", " + INDEX_COLUMNS + ")" +
+                    " VALUES (new." + IndexColumns.DOCID + ", " + NEW_INDEX_COLUMNS + ");" +
+                    " END"
+    };
+
+    // Trigrams of the words of the titles and keywords, used for finding near matches of a
+    // misspelled query. Rows are written by the Index, the trigger removes them with their data.
+    private static final String CREATE_TRIGRAMS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_PREFS_TRIGRAMS +
+                    "(" +
+                    TrigramsColumns.TRIGRAM + " TEXT NOT NULL" +
+                    ", " +
+                    TrigramsColumns.DOCID + " INTEGER NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + TrigramsColumns.TRIGRAM + ", " + TrigramsColumns.DOCID + ")" +
+                    ")";
+
+    private static final String CREATE_TRIGRAMS_DOCID_INDEX =
+            "CREATE INDEX " + Tables.TABLE_PREFS_TRIGRAMS + "_" + TrigramsColumns.DOCID +
+                    " ON " + Tables.TABLE_PREFS_TRIGRAMS + "(" + TrigramsColumns.DOCID + ")";
+
+    private static final String CREATE_DATA_DELETE_TRIGRAMS_TRIGGER =
+            "CREATE TRIGGER " + Tables.TABLE_PREFS_DATA + "_bd_" + Tables.TABLE_PREFS_TRIGRAMS +
+                    " BEFORE DELETE ON " + Tables.TABLE_PREFS_DATA +
+                    " BEGIN DELETE FROM " + Tables.TABLE_PREFS_TRIGRAMS +
+                    " WHERE " + TrigramsColumns.DOCID + " = old." + IndexColumns.DOCID + ";" +
+                    " END";
+
+    private static final String REBUILD_INDEX_TABLE =
+            "INSERT INTO " + Tables.TABLE_PREFS_INDEX + "(" + Tables.TABLE_PREFS_INDEX + ")" +
+                    " VALUES ('rebuild');";
+
+    // Columns of the full content index used by schema version 116
+    private static final String DATA_COLUMNS_116 =
+            IndexColumns.DOCID + ", " +
+                    IndexColumns.LOCALE + ", " +
+                    IndexColumns.DATA_RANK + ", " +
+                    IndexColumns.DATA_TITLE + ", " +
+                    IndexColumns.DATA_TITLE_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_ON + ", " +
+                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF + ", " +
+                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + ", " +
+                    IndexColumns.DATA_ENTRIES + ", " +
+                    IndexColumns.DATA_KEYWORDS + ", " +
+                    IndexColumns.SCREEN_TITLE + ", " +
+                    IndexColumns.CLASS_NAME + ", " +
+                    IndexColumns.ICON + ", " +
+                    IndexColumns.INTENT_ACTION + ", " +
+                    IndexColumns.INTENT_TARGET_PACKAGE + ", " +
+                    IndexColumns.INTENT_TARGET_CLASS + ", " +
+                    IndexColumns.ENABLED + ", " +
+                    IndexColumns.DATA_KEY_REF + ", " +
+                    IndexColumns.USER_ID + ", " +
+                    IndexColumns.PACKAGE_NAME;
+
     private static final String CREATE_META_TABLE =
             "CREATE TABLE " + Tables.TABLE_META_INDEX +
                     "(" +
                     MetaColumns.BUILD + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    MetaColumns.INDEXABLE + " VARCHAR(256)" +
+                    ", " +
+                    MetaColumns.LOCALE + " VARCHAR(32)" +
+                    ", " +
+                    MetaColumns.FINGERPRINT + " VARCHAR(128)" +
                     ")";
 
     private static final String CREATE_SAVED_QUERIES_TABLE =
@@ -124,12 +284,34 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     SavedQueriesColums.TIME_STAMP + " INTEGER" +
                     ")";
 
+    // One row per clicked search result, see PopularityScores for the popularity
+    private static final String CREATE_SEARCH_CLICKS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_SEARCH_CLICKS +
+                    "(" +
+                    ClicksColumns.CLASS_NAME + " TEXT NOT NULL" +
+                    ", " +
+                    ClicksColumns.KEY + " TEXT NOT NULL" +
+                    ", " +
+                    ClicksColumns.TIME_STAMP + " INTEGER" +
+                    ", " +
+                    ClicksColumns.POPULARITY + " REAL" +
+                    ", " +
+                    "PRIMARY KEY (" + ClicksColumns.CLASS_NAME + ", " + ClicksColumns.KEY + ")" +
+                    ")";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
+                    "(" + MetaColumns.BUILD + ")" +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
 
+    private static final String UPDATE_BUILD_VERSION =
+            "UPDATE " + Tables.TABLE_META_INDEX +
+                    " SET " + MetaColumns.BUILD + " = '" + Build.VERSION.INCREMENTAL + "'" +
+                    " WHERE " + MetaColumns.INDEXABLE + " IS NULL;";
+
     private static final String SELECT_BUILD_VERSION =
-            "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX + " LIMIT 1;";
+            "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX +
+                    " WHERE " + MetaColumns.INDEXABLE + " IS NULL LIMIT 1;";
 
     private static IndexDatabaseHelper sSingleton;
 
@@ -141,7 +323,15 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     }
 
     public IndexDatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    // Used by the tests to open a database other than the Index of the device
+    IndexDatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        // Readers see the last committed state while the Index is being updated, so that the
+        // previous generation of the Index stays searchable until the update commits
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -150,23 +340,53 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     }
 
     private void bootstrapDB(SQLiteDatabase db) {
-        db.execSQL(CREATE_INDEX_TABLE);
+        createIndexTables(db);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_SEARCH_CLICKS_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
     }
 
+    private static void createIndexTables(SQLiteDatabase db) {
+        db.execSQL(CREATE_DATA_TABLE);
+        db.execSQL(CREATE_INDEX_TABLE);
+        db.execSQL(CREATE_DATA_INSERT_TRIGGER);
+        db.execSQL(CREATE_DATA_DELETE_TRIGGER);
+        for (String trigger : CREATE_DATA_UPDATE_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+        createTrigramsTable(db);
+    }
+
+    private static void createTrigramsTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_TRIGRAMS_TABLE);
+        db.execSQL(CREATE_TRIGRAMS_DOCID_INDEX);
+        db.execSQL(CREATE_DATA_DELETE_TRIGRAMS_TRIGGER);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.execSQL("PRAGMA recursive_triggers = ON;");
+    }
+
     @Override
     public void onOpen(SQLiteDatabase db) {
         super.onOpen(db);
 
         Log.i(TAG, "Using schema version: " + db.getVersion());
 
-        if (!Build.VERSION.INCREMENTAL.equals(getBuildVersion(db))) {
-            Log.w(TAG, "Index needs to be rebuilt as build-version is not the same");
+        final String buildVersion = getBuildVersion(db);
+        if (buildVersion == null) {
+            Log.w(TAG, "Index needs to be rebuilt as build-version is missing");
             // We need to drop the tables and recreate them
             reconstruct(db);
+        } else if (!Build.VERSION.INCREMENTAL.equals(buildVersion)) {
+            // No need to drop the tables: every indexable carries its own fingerprint (see
+            // MetaColumns.FINGERPRINT) so only the ones that changed will be indexed again.
+            Log.i(TAG, "Build-version changed, stale indexables will be refreshed");
+            db.execSQL(UPDATE_BUILD_VERSION);
         } else {
             Log.i(TAG, "Index is fine");
         }
@@ -174,7 +394,17 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (oldVersion < DATABASE_VERSION) {
+        if (oldVersion >= 116 && oldVersion < DATABASE_VERSION) {
+            Log.i(TAG, "Migrating index from schema version '" + oldVersion + "' to '" +
+                    newVersion + "'.");
+            if (oldVersion < 117) {
+                migrateFrom116(db);
+            }
+            if (oldVersion < 118) {
+                migrateFrom117(db);
+            }
+            db.execSQL(CREATE_SEARCH_CLICKS_TABLE);
+        } else if (oldVersion < DATABASE_VERSION) {
             Log.w(TAG, "Detected schema version '" +  oldVersion + "'. " +
                     "Index needs to be rebuilt for schema version '" + newVersion + "'.");
             // We need to drop the tables and recreate them
@@ -190,6 +420,37 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         reconstruct(db);
     }
 
+    /**
+     * Schema version 116 stored everything in a full content FTS table: move the data to the
+     * data table and index it again, keeping the fingerprints and the saved queries.
+     */
+    private void migrateFrom116(SQLiteDatabase db) {
+        final String oldTable = Tables.TABLE_PREFS_INDEX + "_116";
+        db.execSQL("ALTER TABLE " + Tables.TABLE_PREFS_INDEX + " RENAME TO " + oldTable);
+        db.execSQL(CREATE_DATA_TABLE);
+        db.execSQL("INSERT INTO " + Tables.TABLE_PREFS_DATA + "(" + DATA_COLUMNS_116 + ")" +
+                " SELECT " + DATA_COLUMNS_116 + " FROM " + oldTable);
+        db.execSQL("DROP TABLE " + oldTable);
+
+        db.execSQL(CREATE_INDEX_TABLE);
+        db.execSQL(CREATE_DATA_INSERT_TRIGGER);
+        db.execSQL(CREATE_DATA_DELETE_TRIGGER);
+        for (String trigger : CREATE_DATA_UPDATE_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+        db.execSQL(REBUILD_INDEX_TABLE);
+    }
+
+    /**
+     * Schema version 117 had no trigrams. They cannot be computed in SQL, so forget the
+     * fingerprints of the indexables: the next update of the Index will write them again.
+     */
+    private void migrateFrom117(SQLiteDatabase db) {
+        createTrigramsTable(db);
+        db.execSQL("DELETE FROM " + Tables.TABLE_META_INDEX +
+                " WHERE " + MetaColumns.INDEXABLE + " IS NOT NULL");
+    }
+
     private void reconstruct(SQLiteDatabase db) {
         dropTables(db);
         bootstrapDB(db);
@@ -218,6 +479,9 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private void dropTables(SQLiteDatabase db) {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_DATA);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_TRIGRAMS);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SEARCH_CLICKS);
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.text.format.DateFormat;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Statistics of the recent updates of the Index and of the latency of its searches, for
+ * dumpsys.
+ */
+final class IndexStats {
+
+    // Number of updates kept, the oldest ones are dropped
+    private static final int MAX_RUNS = 8;
+    // Number of search latencies kept for computing the percentiles
+    private static final int MAX_SEARCH_LATENCIES = 256;
+
+    private static final Comparator<Unit> UNIT_COMPARATOR = new Comparator<Unit>() {
+        @Override
+        public int compare(Unit lhs, Unit rhs) {
+            return Long.compare(rhs.parseNanos, lhs.parseNanos);
+        }
+    };
+
+    /**
+     * The work done for one indexable: a class name, or a package for remote providers
+     */
+    static final class Unit {
+        public final String name;
+        public long parseNanos;
+        public int rowsWritten;
+        public int rowsSkipped;
+
+        public Unit(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * The fetch of the data of a remote authority
+     */
+    static final class Fetch {
+        public final String authority;
+        public final long nanos;
+        public final int indexables;
+        public final boolean successful;
+
+        public Fetch(String authority, long nanos, int indexables, boolean successful) {
+            this.authority = authority;
+            this.nanos = nanos;
+            this.indexables = indexables;
+            this.successful = successful;
+        }
+    }
+
+    /**
+     * One update of the Index
+     */
+    static final class Run {
+        public final long timestamp = System.currentTimeMillis();
+        public final String locale;
+        public final boolean forceUpdate;
+        public final boolean fullIndex;
+        public long transactionNanos;
+        public int rowsWritten;
+        public int rowsSkipped;
+        public boolean successful;
+        private final Map<String, Unit> mUnits = new LinkedHashMap<String, Unit>();
+
+        public Run(String locale, boolean forceUpdate, boolean fullIndex) {
+            this.locale = locale;
+            this.forceUpdate = forceUpdate;
+            this.fullIndex = fullIndex;
+        }
+
+        public synchronized void addUnit(String name, long parseNanos, int rowsWritten,
+                int rowsSkipped) {
+            Unit unit = mUnits.get(name);
+            if (unit == null) {
+                unit = new Unit(name);
+                mUnits.put(name, unit);
+            }
+            unit.parseNanos += parseNanos;
+            unit.rowsWritten += rowsWritten;
+            unit.rowsSkipped += rowsSkipped;
+            this.rowsWritten += rowsWritten;
+            this.rowsSkipped += rowsSkipped;
+        }
+
+        private synchronized void dump(String prefix, PrintWriter writer) {
+            writer.print(prefix);
+            writer.print(DateFormat.format("yyyy-MM-dd HH:mm:ss", timestamp));
+            writer.print(" locale=");
+            writer.print(locale);
+            writer.print(" force=");
+            writer.print(forceUpdate);
+            writer.print(" full=");
+            writer.print(fullIndex);
+            writer.print(" successful=");
+            writer.print(successful);
+            writer.print(" transaction=");
+            writer.print(formatMillis(transactionNanos));
+            writer.print(" rows=");
+            writer.print(rowsWritten);
+            writer.print(" skipped=");
+            writer.println(rowsSkipped);
+
+            final List<Unit> units = new ArrayList<Unit>(mUnits.values());
+            Collections.sort(units, UNIT_COMPARATOR);
+            for (Unit unit : units) {
+                writer.print(prefix);
+                writer.print("  ");
+                writer.print(unit.name);
+                writer.print(": parse=");
+                writer.print(formatMillis(unit.parseNanos));
+                writer.print(" rows=");
+                writer.print(unit.rowsWritten);
+                writer.print(" skipped=");
+                writer.println(unit.rowsSkipped);
+            }
+        }
+    }
+
+    private final ArrayDeque<Run> mRuns = new ArrayDeque<Run>(MAX_RUNS);
+    private List<Fetch> mFetches = Collections.emptyList();
+    private final long[] mSearchLatencies = new long[MAX_SEARCH_LATENCIES];
+    private int mSearchCount;
+
+    public synchronized void addRun(Run run) {
+        if (mRuns.size() == MAX_RUNS) {
+            mRuns.removeFirst();
+        }
+        mRuns.addLast(run);
+    }
+
+    /**
+     * Replace the fetches of the remote authorities with the ones of a new discovery.
+     */
+    public synchronized void setFetches(List<Fetch> fetches) {
+        mFetches = fetches;
+    }
+
+    public synchronized void addSearchLatency(long nanos) {
+        mSearchLatencies[mSearchCount % MAX_SEARCH_LATENCIES] = nanos;
+        mSearchCount++;
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Recent updates (newest first):");
+        final Iterator<Run> runs = mRuns.descendingIterator();
+        while (runs.hasNext()) {
+            runs.next().dump(prefix + "  ", writer);
+        }
+
+        writer.print(prefix);
+        writer.println("Remote authorities (last discovery):");
+        for (Fetch fetch : mFetches) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(fetch.authority);
+            writer.print(": fetch=");
+            writer.print(formatMillis(fetch.nanos));
+            writer.print(" indexables=");
+            writer.print(fetch.indexables);
+            writer.print(" successful=");
+            writer.println(fetch.successful);
+        }
+
+        final int count = Math.min(mSearchCount, MAX_SEARCH_LATENCIES);
+        writer.print(prefix);
+        writer.print("Search latency (last ");
+        writer.print(count);
+        writer.print(" of ");
+        writer.print(mSearchCount);
+        writer.print(" queries):");
+        if (count > 0) {
+            final long[] latencies = Arrays.copyOf(mSearchLatencies, count);
+            Arrays.sort(latencies);
+            writer.print(" p50=");
+            writer.print(formatMillis(getPercentile(latencies, 50)));
+            writer.print(" p90=");
+            writer.print(formatMillis(getPercentile(latencies, 90)));
+            writer.print(" p99=");
+            writer.print(formatMillis(getPercentile(latencies, 99)));
+            writer.print(" max=");
+            writer.print(formatMillis(latencies[count - 1]));
+        }
+        writer.println();
+    }
+
+    private static long getPercentile(long[] sortedValues, int percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, index)];
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.US, "%.1fms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+import static com.android.settings.search.IndexDatabaseHelper.ClicksColumns;
+
+/**
+ * Popularity of the search results, computed from the clicks on them.
+ *
+ * Every click adds one to the score of a result and scores halve every HALF_LIFE_MILLIS. As
+ * decaying all the scores by the same factor does not change their order, a score s at time t
+ * is kept as log2(s) + t / HALF_LIFE_MILLIS: scores updated at different times compare
+ * directly, and a click only updates the score of the clicked result.
+ */
+final class PopularityScores {
+
+    static final long HALF_LIFE_MILLIS = 14L * 24 * 60 * 60 * 1000;
+
+    private static final double LOG_2 = Math.log(2);
+
+    private final Map<String, Double> mScores = new HashMap<String, Double>();
+
+    private PopularityScores() {
+    }
+
+    /**
+     * Load the scores of the clicked search results.
+     */
+    public static PopularityScores load(SQLiteDatabase database) {
+        final PopularityScores result = new PopularityScores();
+        final Cursor cursor = database.query(Tables.TABLE_SEARCH_CLICKS,
+                new String[] { ClicksColumns.CLASS_NAME, ClicksColumns.KEY,
+                        ClicksColumns.POPULARITY },
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                result.mScores.put(getId(cursor.getString(0), cursor.getString(1)),
+                        cursor.getDouble(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Add a click on a search result and return its new score.
+     */
+    public synchronized double addClick(String className, String key, long timestamp) {
+        final String id = getId(className, key);
+        final Double previous = mScores.get(id);
+        final double score = addClick(
+                (previous != null) ? previous : Double.NEGATIVE_INFINITY, timestamp);
+        mScores.put(id, score);
+        return score;
+    }
+
+    /**
+     * Return the score after a click at the given time on a result with the given score.
+     */
+    static double addClick(double score, long timestamp) {
+        final double time = (double) timestamp / HALF_LIFE_MILLIS;
+        // 2^(score - time) is the decayed value of the score at the time of the click
+        return Math.log(Math.pow(2, score - time) + 1) / LOG_2 + time;
+    }
+
+    /**
+     * Return a comparator of search results rows putting the most popular results first. The
+     * comparator uses the current scores, clicks added later do not change its order.
+     *
+     * @param classNameIndex the index of the class name in the rows.
+     * @param keyIndex the index of the key in the rows.
+     */
+    public synchronized Comparator<Object[]> getComparator(final int classNameIndex,
+            final int keyIndex) {
+        final Map<String, Double> scores = new HashMap<String, Double>(mScores);
+        return new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] lhs, Object[] rhs) {
+                return Double.compare(getScore(scores, rhs), getScore(scores, lhs));
+            }
+
+            private double getScore(Map<String, Double> scores, Object[] row) {
+                final Double score = scores.get(
+                        getId((String) row[classNameIndex], (String) row[keyIndex]));
+                return (score != null) ? score : Double.NEGATIVE_INFINITY;
+            }
+        };
+    }
+
+    /**
+     * Keys are optional: results without one are stored with an empty key.
+     */
+    static String getKey(String key) {
+        return (key != null) ? key : "";
+    }
+
+    private static String getId(String className, String key) {
+        return className + "/" + getKey(key);
+    }
+}
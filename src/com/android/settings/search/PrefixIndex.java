@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
+/**
+ * An in-memory copy of the searchable rows of the Index database for one locale, answering
+ * prefix queries without going through SQLite.
+ *
+ * Every word of the primary (title, keywords) and secondary (summaries, entries) columns is
+ * normalized and kept in a sorted array, so that all the words starting with a prefix are
+ * found with a binary search.
+ */
+final class PrefixIndex {
+
+    private static final Comparator<Word> WORD_COMPARATOR = new Comparator<Word>() {
+        @Override
+        public int compare(Word lhs, Word rhs) {
+            return lhs.word.compareTo(rhs.word);
+        }
+    };
+
+    private static class Word {
+        public final String word;
+        public final int row;
+        public final boolean primary;
+
+        public Word(String word, int row, boolean primary) {
+            this.word = word;
+            this.row = row;
+            this.primary = primary;
+        }
+    }
+
+    private final String mLocale;
+    private final String[] mColumnNames;
+    // Rows, in rank order, with the values of mColumnNames
+    private final Object[][] mRows;
+    // Sorted words, with the row they belong to and whether they come from a primary column
+    private final String[] mWords;
+    private final int[] mWordRows;
+    private final boolean[] mWordPrimary;
+
+    private PrefixIndex(String locale, String[] columnNames, Object[][] rows, List<Word> words) {
+        mLocale = locale;
+        mColumnNames = columnNames;
+        mRows = rows;
+
+        Collections.sort(words, WORD_COMPARATOR);
+        final int count = words.size();
+        mWords = new String[count];
+        mWordRows = new int[count];
+        mWordPrimary = new boolean[count];
+        for (int n = 0; n < count; n++) {
+            final Word word = words.get(n);
+            mWords[n] = word.word;
+            mWordRows[n] = word.row;
+            mWordPrimary[n] = word.primary;
+        }
+    }
+
+    /**
+     * Build the prefix index from the enabled rows of the Index database for a locale.
+     *
+     * @param columnNames the columns returned by {@link #search(String)}.
+     * @param primaryColumns the columns whose matches come first.
+     * @param secondaryColumns the columns whose matches come after the primary ones.
+     */
+    public static PrefixIndex build(SQLiteDatabase database, String locale,
+            String[] columnNames, String[] primaryColumns, String[] secondaryColumns) {
+        final int columnCount = columnNames.length;
+        final String[] projection = new String[columnCount + primaryColumns.length +
+                secondaryColumns.length];
+        System.arraycopy(columnNames, 0, projection, 0, columnCount);
+        System.arraycopy(primaryColumns, 0, projection, columnCount, primaryColumns.length);
+        System.arraycopy(secondaryColumns, 0, projection, columnCount + primaryColumns.length,
+                secondaryColumns.length);
+
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        final List<Word> words = new ArrayList<Word>();
+        final Cursor cursor = database.query(Tables.TABLE_PREFS_DATA, projection,
+                IndexColumns.LOCALE + " = ? AND " + IndexColumns.ENABLED + " = 1",
+                new String[] { locale }, null, null, IndexColumns.DATA_RANK);
+        try {
+            while (cursor.moveToNext()) {
+                final int row = rows.size();
+                final Object[] values = new Object[columnCount];
+                for (int n = 0; n < columnCount; n++) {
+                    values[n] = getValue(cursor, n);
+                }
+                rows.add(values);
+
+                for (int n = columnCount; n < projection.length; n++) {
+                    addWords(words, cursor.getString(n), row,
+                            n < columnCount + primaryColumns.length);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return new PrefixIndex(locale, columnNames, rows.toArray(new Object[rows.size()][]),
+                words);
+    }
+
+    public String getLocale() {
+        return mLocale;
+    }
+
+    /**
+     * Search for the rows matching a query: every word of the query needs to be the prefix of
+     * a word of the row. Rows matching on their primary columns come first, by rank.
+     *
+     * @param comparator the order of the rows matching on the same columns, rows it considers
+     *         equal stay in rank order. Can be null.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal,
+            Comparator<Object[]> comparator) {
+        final MatrixCursor cursor = new MatrixCursor(mColumnNames);
+
+        final String[] prefixes = getPrefixes(query);
+        if (prefixes.length == 0) {
+            return cursor;
+        }
+
+        BitSet primary = null;
+        BitSet secondary = null;
+        for (String prefix : prefixes) {
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            final BitSet primaryHits = new BitSet(mRows.length);
+            final BitSet secondaryHits = new BitSet(mRows.length);
+            findRows(prefix, primaryHits, secondaryHits);
+            if (primary == null) {
+                primary = primaryHits;
+                secondary = secondaryHits;
+            } else {
+                primary.and(primaryHits);
+                secondary.and(secondaryHits);
+            }
+        }
+        secondary.andNot(primary);
+
+        addRows(cursor, primary, comparator);
+        addRows(cursor, secondary, comparator);
+        return cursor;
+    }
+
+    private void addRows(MatrixCursor cursor, BitSet rows, Comparator<Object[]> comparator) {
+        final List<Object[]> values = new ArrayList<Object[]>(rows.cardinality());
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+            values.add(mRows[row]);
+        }
+        if (comparator != null) {
+            // The sort is stable, so that rows keep their rank order
+            Collections.sort(values, comparator);
+        }
+        final int count = values.size();
+        for (int n = 0; n < count; n++) {
+            cursor.addRow(values.get(n));
+        }
+    }
+
+    /**
+     * Return the normalized prefixes of a query, as used by {@link #search}.
+     */
+    static String[] getPrefixes(String query) {
+        return split(Index.normalizeString(query));
+    }
+
+    /**
+     * Return true if every prefix is the prefix of a word of the values.
+     */
+    static boolean matches(String[] prefixes, String... values) {
+        final List<String> words = new ArrayList<String>();
+        for (String value : values) {
+            if (value != null) {
+                Collections.addAll(words, split(Index.normalizeString(value)));
+            }
+        }
+        for (String prefix : prefixes) {
+            boolean found = false;
+            final int count = words.size();
+            for (int n = 0; n < count && !found; n++) {
+                found = words.get(n).startsWith(prefix);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void findRows(String prefix, BitSet primaryHits, BitSet secondaryHits) {
+        int index = Arrays.binarySearch(mWords, prefix);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        final int count = mWords.length;
+        for (; index < count && mWords[index].startsWith(prefix); index++) {
+            if (mWordPrimary[index]) {
+                primaryHits.set(mWordRows[index]);
+            } else {
+                secondaryHits.set(mWordRows[index]);
+            }
+        }
+    }
+
+    static Object getValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    private static void addWords(List<Word> words, String value, int row, boolean primary) {
+        if (value == null) {
+            return;
+        }
+        for (String word : split(Index.normalizeString(value))) {
+            words.add(new Word(word, row, primary));
+        }
+    }
+
+    static String[] split(String value) {
+        final List<String> result = new ArrayList<String>();
+        final int length = value.length();
+        int start = -1;
+        for (int n = 0; n <= length; n++) {
+            final boolean isWordChar = (n < length) && Character.isLetterOrDigit(value.charAt(n));
+            if (isWordChar && start < 0) {
+                start = n;
+            } else if (!isWordChar && start >= 0) {
+                result.add(value.substring(start, n));
+                start = -1;
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+}
@@ -16,43 +16,6 @@
 
 package com.android.settings.search;
 
-import com.android.settings.ChooseLockGeneric;
-import com.android.settings.DataUsageSummary;
-import com.android.settings.DateTimeSettings;
-import com.android.settings.DevelopmentSettings;
-import com.android.settings.DeviceInfoSettings;
-import com.android.settings.DisplaySettings;
-import com.android.settings.HomeSettings;
-import com.android.settings.LegalSettings;
-import com.android.settings.PrivacySettings;
-import com.android.settings.ScreenPinningSettings;
-import com.android.settings.SecuritySettings;
-import com.android.settings.WallpaperTypeSettings;
-import com.android.settings.WifiCallingSettings;
-import com.android.settings.WirelessSettings;
-import com.android.settings.accessibility.AccessibilitySettings;
-import com.android.settings.applications.AdvancedAppSettings;
-import com.android.settings.applications.ManageDefaultApps;
-import com.android.settings.bluetooth.BluetoothSettings;
-import com.android.settings.deviceinfo.StorageSettings;
-import com.android.settings.fuelgauge.BatterySaverSettings;
-import com.android.settings.fuelgauge.PowerUsageSummary;
-import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
-import com.android.settings.location.LocationSettings;
-import com.android.settings.location.ScanningSettings;
-import com.android.settings.net.DataUsageMeteredSettings;
-import com.android.settings.notification.NotificationSettings;
-import com.android.settings.notification.OtherSoundSettings;
-import com.android.settings.notification.ZenModeAutomationSettings;
-import com.android.settings.notification.ZenModePrioritySettings;
-import com.android.settings.notification.ZenModeSettings;
-import com.android.settings.print.PrintSettingsFragment;
-import com.android.settings.sim.SimSettings;
-import com.android.settings.users.UserSettings;
-import com.android.settings.wifi.AdvancedWifiSettings;
-import com.android.settings.wifi.SavedAccessPointsWifiSettings;
-import com.android.settings.wifi.WifiSettings;
-
 import java.util.HashMap;
 
 /**
@@ -92,86 +55,92 @@ public final class Ranking {
     private static HashMap<String, Integer> sRankMap = new HashMap<String, Integer>();
     private static HashMap<String, Integer> sBaseRankMap = new HashMap<String, Integer>();
 
+    // The fragments are referenced by name, so that looking up a rank does not load and link
+    // every indexable fragment class
     static {
         // Wi-Fi
-        sRankMap.put(WifiSettings.class.getName(), RANK_WIFI);
-        sRankMap.put(AdvancedWifiSettings.class.getName(), RANK_WIFI);
-        sRankMap.put(SavedAccessPointsWifiSettings.class.getName(), RANK_WIFI);
+        sRankMap.put("com.android.settings.wifi.WifiSettings", RANK_WIFI);
+        sRankMap.put("com.android.settings.wifi.AdvancedWifiSettings", RANK_WIFI);
+        sRankMap.put("com.android.settings.wifi.SavedAccessPointsWifiSettings", RANK_WIFI);
 
         // BT
-        sRankMap.put(BluetoothSettings.class.getName(), RANK_BT);
+        sRankMap.put("com.android.settings.bluetooth.BluetoothSettings", RANK_BT);
 
         // SIM Cards
-        sRankMap.put(SimSettings.class.getName(), RANK_SIM);
+        sRankMap.put("com.android.settings.sim.SimSettings", RANK_SIM);
 
         // DataUsage
-        sRankMap.put(DataUsageSummary.class.getName(), RANK_DATA_USAGE);
-        sRankMap.put(DataUsageMeteredSettings.class.getName(), RANK_DATA_USAGE);
+        sRankMap.put("com.android.settings.DataUsageSummary", RANK_DATA_USAGE);
+        sRankMap.put("com.android.settings.net.DataUsageMeteredSettings", RANK_DATA_USAGE);
 
         // Other wireless settinfs
-        sRankMap.put(WirelessSettings.class.getName(), RANK_WIRELESS);
-        sRankMap.put(WifiCallingSettings.class.getName(), RANK_WIRELESS);
+        sRankMap.put("com.android.settings.WirelessSettings", RANK_WIRELESS);
+        sRankMap.put("com.android.settings.WifiCallingSettings", RANK_WIRELESS);
 
         // Home
-        sRankMap.put(HomeSettings.class.getName(), RANK_HOME);
+        sRankMap.put("com.android.settings.HomeSettings", RANK_HOME);
 
         // Display
-        sRankMap.put(DisplaySettings.class.getName(), RANK_DISPLAY);
+        sRankMap.put("com.android.settings.DisplaySettings", RANK_DISPLAY);
 
         // Wallpapers
-        sRankMap.put(WallpaperTypeSettings.class.getName(), RANK_WALLPAPER);
+        sRankMap.put("com.android.settings.WallpaperTypeSettings", RANK_WALLPAPER);
 
         // Notifications
-        sRankMap.put(NotificationSettings.class.getName(), RANK_NOTIFICATIONS);
-        sRankMap.put(OtherSoundSettings.class.getName(), RANK_NOTIFICATIONS);
-        sRankMap.put(ZenModeSettings.class.getName(), RANK_NOTIFICATIONS);
-        sRankMap.put(ZenModePrioritySettings.class.getName(), RANK_NOTIFICATIONS);
-        sRankMap.put(ZenModeAutomationSettings.class.getName(), RANK_NOTIFICATIONS);
+        sRankMap.put("com.android.settings.notification.NotificationSettings", RANK_NOTIFICATIONS);
+        sRankMap.put("com.android.settings.notification.OtherSoundSettings", RANK_NOTIFICATIONS);
+        sRankMap.put("com.android.settings.notification.ZenModeSettings", RANK_NOTIFICATIONS);
+        sRankMap.put("com.android.settings.notification.ZenModePrioritySettings",
+                RANK_NOTIFICATIONS);
+        sRankMap.put("com.android.settings.notification.ZenModeAutomationSettings",
+                RANK_NOTIFICATIONS);
 
         // Storage
-        sRankMap.put(StorageSettings.class.getName(), RANK_STORAGE);
+        sRankMap.put("com.android.settings.deviceinfo.StorageSettings", RANK_STORAGE);
 
         // Battery
-        sRankMap.put(PowerUsageSummary.class.getName(), RANK_POWER_USAGE);
-        sRankMap.put(BatterySaverSettings.class.getName(), RANK_POWER_USAGE);
+        sRankMap.put("com.android.settings.fuelgauge.PowerUsageSummary", RANK_POWER_USAGE);
+        sRankMap.put("com.android.settings.fuelgauge.BatterySaverSettings", RANK_POWER_USAGE);
 
         // Advanced app settings
-        sRankMap.put(AdvancedAppSettings.class.getName(), RANK_APPS);
-        sRankMap.put(ManageDefaultApps.class.getName(), RANK_APPS);
+        sRankMap.put("com.android.settings.applications.AdvancedAppSettings", RANK_APPS);
+        sRankMap.put("com.android.settings.applications.ManageDefaultApps", RANK_APPS);
 
         // Users
-        sRankMap.put(UserSettings.class.getName(), RANK_USERS);
+        sRankMap.put("com.android.settings.users.UserSettings", RANK_USERS);
 
         // Location
-        sRankMap.put(LocationSettings.class.getName(), RANK_LOCATION);
-        sRankMap.put(ScanningSettings.class.getName(), RANK_LOCATION);
+        sRankMap.put("com.android.settings.location.LocationSettings", RANK_LOCATION);
+        sRankMap.put("com.android.settings.location.ScanningSettings", RANK_LOCATION);
 
         // Security
-        sRankMap.put(SecuritySettings.class.getName(), RANK_SECURITY);
-        sRankMap.put(ChooseLockGeneric.ChooseLockGenericFragment.class.getName(), RANK_SECURITY);
-        sRankMap.put(ScreenPinningSettings.class.getName(), RANK_SECURITY);
+        sRankMap.put("com.android.settings.SecuritySettings", RANK_SECURITY);
+        sRankMap.put("com.android.settings.ChooseLockGeneric$ChooseLockGenericFragment",
+                RANK_SECURITY);
+        sRankMap.put("com.android.settings.ScreenPinningSettings", RANK_SECURITY);
 
         // IMEs
-        sRankMap.put(InputMethodAndLanguageSettings.class.getName(), RANK_IME);
+        sRankMap.put("com.android.settings.inputmethod.InputMethodAndLanguageSettings", RANK_IME);
 
         // Privacy
-        sRankMap.put(PrivacySettings.class.getName(), RANK_PRIVACY);
+        sRankMap.put("com.android.settings.PrivacySettings", RANK_PRIVACY);
 
         // Date / Time
-        sRankMap.put(DateTimeSettings.class.getName(), RANK_DATE_TIME);
+        sRankMap.put("com.android.settings.DateTimeSettings", RANK_DATE_TIME);
 
         // Accessibility
-        sRankMap.put(AccessibilitySettings.class.getName(), RANK_ACCESSIBILITY);
+        sRankMap.put("com.android.settings.accessibility.AccessibilitySettings",
+                RANK_ACCESSIBILITY);
 
         // Print
-        sRankMap.put(PrintSettingsFragment.class.getName(), RANK_PRINTING);
+        sRankMap.put("com.android.settings.print.PrintSettingsFragment", RANK_PRINTING);
 
         // Development
-        sRankMap.put(DevelopmentSettings.class.getName(), RANK_DEVELOPEMENT);
+        sRankMap.put("com.android.settings.DevelopmentSettings", RANK_DEVELOPEMENT);
 
         // Device infos
-        sRankMap.put(DeviceInfoSettings.class.getName(), RANK_DEVICE_INFO);
-        sRankMap.put(LegalSettings.class.getName(), RANK_DEVICE_INFO);
+        sRankMap.put("com.android.settings.DeviceInfoSettings", RANK_DEVICE_INFO);
+        sRankMap.put("com.android.settings.LegalSettings", RANK_DEVICE_INFO);
 
         sBaseRankMap.put("com.android.settings", 0);
     }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+import static com.android.settings.search.IndexDatabaseHelper.SavedQueriesColums;
+
+/**
+ * In memory copy of the saved search queries, the most recent first.
+ *
+ * The suggestions are served from memory: the queries are loaded once from the database and
+ * the new ones are only added to the memory copy, then written back to the database by batches
+ * with {@link #write(SQLiteDatabase)}.
+ */
+final class SavedQueries {
+
+    private static final class Entry {
+        final String query;
+        final long timestamp;
+
+        Entry(String query, long timestamp) {
+            this.query = query;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final int mMaxQueries;
+
+    // The most recent query first
+    private final LinkedList<Entry> mEntries = new LinkedList<Entry>();
+    // The queries added since the last write, by query so that only the last one is written
+    private final Map<String, Entry> mPendingEntries = new LinkedHashMap<String, Entry>();
+    private boolean mLoaded;
+
+    SavedQueries(int maxQueries) {
+        mMaxQueries = maxQueries;
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Load the saved queries from the database, behind the ones already added.
+     */
+    public synchronized void load(SQLiteDatabase database) {
+        if (mLoaded) {
+            return;
+        }
+        final Cursor cursor = database.query(Tables.TABLE_SAVED_QUERIES,
+                new String[] { SavedQueriesColums.QUERY, SavedQueriesColums.TIME_STAMP },
+                null, null, null, null, "rowId DESC", Integer.toString(mMaxQueries));
+        try {
+            while (cursor.moveToNext()) {
+                final String query = cursor.getString(0);
+                if (!mPendingEntries.containsKey(query)) {
+                    mEntries.addLast(new Entry(query, cursor.getLong(1)));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        trim();
+        mLoaded = true;
+    }
+
+    /**
+     * Add a query, or move it first if it has already been saved.
+     */
+    public synchronized void add(String query, long timestamp) {
+        remove(query);
+        final Entry entry = new Entry(query, timestamp);
+        mEntries.addFirst(entry);
+        trim();
+
+        mPendingEntries.remove(query);
+        mPendingEntries.put(query, entry);
+    }
+
+    /**
+     * Get the most recent queries starting with the prefix, ignoring the case.
+     */
+    public synchronized List<String> getSuggestions(String prefix, int max) {
+        final List<String> result = new ArrayList<String>(max);
+        final int length = (prefix != null) ? prefix.length() : 0;
+        for (Entry entry : mEntries) {
+            if (result.size() >= max) {
+                break;
+            }
+            if (length == 0 || entry.query.regionMatches(true, 0, prefix, 0, length)) {
+                result.add(entry.query);
+            }
+        }
+        return result;
+    }
+
+    public synchronized boolean hasPendingWrites() {
+        return !mPendingEntries.isEmpty();
+    }
+
+    /**
+     * Write the queries added since the last write, in a single transaction, then remove the
+     * oldest ones from the database.
+     */
+    public void write(SQLiteDatabase database) {
+        final List<Entry> entries;
+        synchronized (this) {
+            if (mPendingEntries.isEmpty()) {
+                return;
+            }
+            entries = new ArrayList<Entry>(mPendingEntries.values());
+            mPendingEntries.clear();
+        }
+
+        boolean written = false;
+        database.beginTransaction();
+        try {
+            final ContentValues values = new ContentValues();
+            final String[] args = new String[1];
+            for (Entry entry : entries) {
+                args[0] = entry.query;
+                database.delete(Tables.TABLE_SAVED_QUERIES,
+                        SavedQueriesColums.QUERY + " = ?", args);
+
+                values.put(SavedQueriesColums.QUERY, entry.query);
+                values.put(SavedQueriesColums.TIME_STAMP, entry.timestamp);
+                database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
+            }
+
+            database.delete(Tables.TABLE_SAVED_QUERIES,
+                    "rowId NOT IN (SELECT rowId FROM " + Tables.TABLE_SAVED_QUERIES +
+                            " ORDER BY rowId DESC LIMIT " + mMaxQueries + ")", null);
+            database.setTransactionSuccessful();
+            written = true;
+        } finally {
+            database.endTransaction();
+            if (!written) {
+                restorePendingEntries(entries);
+            }
+        }
+    }
+
+    private synchronized void restorePendingEntries(List<Entry> entries) {
+        // Keep the entries added since, they are more recent
+        final Map<String, Entry> added = new LinkedHashMap<String, Entry>(mPendingEntries);
+        mPendingEntries.clear();
+        for (Entry entry : entries) {
+            mPendingEntries.put(entry.query, entry);
+        }
+        for (Entry entry : added.values()) {
+            mPendingEntries.remove(entry.query);
+            mPendingEntries.put(entry.query, entry);
+        }
+    }
+
+    private void remove(String query) {
+        final Iterator<Entry> it = mEntries.iterator();
+        while (it.hasNext()) {
+            if (it.next().query.equals(query)) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    private void trim() {
+        while (mEntries.size() > mMaxQueries) {
+            mEntries.removeLast();
+        }
+    }
+}
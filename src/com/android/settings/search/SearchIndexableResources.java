@@ -18,41 +18,7 @@ package com.android.settings.search;
 
 import android.provider.SearchIndexableResource;
 
-import com.android.settings.DataUsageSummary;
-import com.android.settings.DateTimeSettings;
-import com.android.settings.DevelopmentSettings;
-import com.android.settings.DeviceInfoSettings;
-import com.android.settings.DisplaySettings;
-import com.android.settings.HomeSettings;
-import com.android.settings.LegalSettings;
-import com.android.settings.PrivacySettings;
 import com.android.settings.R;
-import com.android.settings.ScreenPinningSettings;
-import com.android.settings.SecuritySettings;
-import com.android.settings.WallpaperTypeSettings;
-import com.android.settings.WifiCallingSettings;
-import com.android.settings.WirelessSettings;
-import com.android.settings.accessibility.AccessibilitySettings;
-import com.android.settings.applications.AdvancedAppSettings;
-import com.android.settings.applications.ManageDefaultApps;
-import com.android.settings.bluetooth.BluetoothSettings;
-import com.android.settings.deviceinfo.StorageSettings;
-import com.android.settings.fuelgauge.BatterySaverSettings;
-import com.android.settings.fuelgauge.PowerUsageSummary;
-import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
-import com.android.settings.location.LocationSettings;
-import com.android.settings.location.ScanningSettings;
-import com.android.settings.net.DataUsageMeteredSettings;
-import com.android.settings.notification.NotificationSettings;
-import com.android.settings.notification.OtherSoundSettings;
-import com.android.settings.notification.ZenModePrioritySettings;
-import com.android.settings.notification.ZenModeSettings;
-import com.android.settings.print.PrintSettingsFragment;
-import com.android.settings.sim.SimSettings;
-import com.android.settings.users.UserSettings;
-import com.android.settings.wifi.AdvancedWifiSettings;
-import com.android.settings.wifi.SavedAccessPointsWifiSettings;
-import com.android.settings.wifi.WifiSettings;
 
 import java.util.Collection;
 import java.util.HashMap;
@@ -64,249 +30,121 @@ public final class SearchIndexableResources {
     private static HashMap<String, SearchIndexableResource> sResMap =
             new HashMap<String, SearchIndexableResource>();
 
+    // The fragments are referenced by name, so that looking up a resource does not load and
+    // link every indexable fragment class. The Indexable providers are resolved by Index when
+    // the resources are indexed.
     static {
-        sResMap.put(WifiSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(WifiSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        WifiSettings.class.getName(),
-                        R.drawable.ic_settings_wireless));
-
-        sResMap.put(AdvancedWifiSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(AdvancedWifiSettings.class.getName()),
-                        R.xml.wifi_advanced_settings,
-                        AdvancedWifiSettings.class.getName(),
-                        R.drawable.ic_settings_wireless));
-
-        sResMap.put(SavedAccessPointsWifiSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(SavedAccessPointsWifiSettings.class.getName()),
-                        R.xml.wifi_display_saved_access_points,
-                        SavedAccessPointsWifiSettings.class.getName(),
-                        R.drawable.ic_settings_wireless));
-
-        sResMap.put(BluetoothSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(BluetoothSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        BluetoothSettings.class.getName(),
-                        R.drawable.ic_settings_bluetooth));
-
-        sResMap.put(SimSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(SimSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        SimSettings.class.getName(),
-                        R.drawable.ic_sim_sd));
-
-        sResMap.put(DataUsageSummary.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(DataUsageSummary.class.getName()),
-                        NO_DATA_RES_ID,
-                        DataUsageSummary.class.getName(),
-                        R.drawable.ic_settings_data_usage));
-
-        sResMap.put(DataUsageMeteredSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(DataUsageMeteredSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        DataUsageMeteredSettings.class.getName(),
-                        R.drawable.ic_settings_data_usage));
-
-        sResMap.put(WirelessSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(WirelessSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        WirelessSettings.class.getName(),
-                        R.drawable.ic_settings_more));
-
-        sResMap.put(HomeSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(HomeSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        HomeSettings.class.getName(),
-                        R.drawable.ic_settings_home));
-
-        sResMap.put(DisplaySettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(DisplaySettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        DisplaySettings.class.getName(),
-                        R.drawable.ic_settings_display));
-
-        sResMap.put(WallpaperTypeSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(WallpaperTypeSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        WallpaperTypeSettings.class.getName(),
-                        R.drawable.ic_settings_display));
-
-        sResMap.put(NotificationSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(NotificationSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        NotificationSettings.class.getName(),
-                        R.drawable.ic_settings_notifications));
-
-        sResMap.put(OtherSoundSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(OtherSoundSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        OtherSoundSettings.class.getName(),
-                        R.drawable.ic_settings_notifications));
-
-        sResMap.put(ZenModeSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(ZenModeSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        ZenModeSettings.class.getName(),
-                        R.drawable.ic_settings_notifications));
-
-        sResMap.put(ZenModePrioritySettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(ZenModePrioritySettings.class.getName()),
-                        R.xml.zen_mode_priority_settings,
-                        ZenModePrioritySettings.class.getName(),
-                        R.drawable.ic_settings_notifications));
-
-        sResMap.put(StorageSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(StorageSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        StorageSettings.class.getName(),
-                        R.drawable.ic_settings_storage));
-
-        sResMap.put(PowerUsageSummary.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(PowerUsageSummary.class.getName()),
-                        R.xml.power_usage_summary,
-                        PowerUsageSummary.class.getName(),
-                        R.drawable.ic_settings_battery));
-
-        sResMap.put(BatterySaverSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(BatterySaverSettings.class.getName()),
-                        R.xml.battery_saver_settings,
-                        BatterySaverSettings.class.getName(),
-                        R.drawable.ic_settings_battery));
-
-        sResMap.put(AdvancedAppSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(AdvancedAppSettings.class.getName()),
-                        R.xml.advanced_apps,
-                        AdvancedAppSettings.class.getName(),
-                        R.drawable.ic_settings_applications));
-
-        sResMap.put(ManageDefaultApps.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(ManageDefaultApps.class.getName()),
-                        NO_DATA_RES_ID,
-                        ManageDefaultApps.class.getName(),
-                        R.drawable.ic_settings_applications));
-
-        sResMap.put(UserSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(UserSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        UserSettings.class.getName(),
-                        R.drawable.ic_settings_multiuser));
-
-        sResMap.put(LocationSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(LocationSettings.class.getName()),
-                        R.xml.location_settings,
-                        LocationSettings.class.getName(),
-                        R.drawable.ic_settings_location));
-
-        sResMap.put(ScanningSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(ScanningSettings.class.getName()),
-                        R.xml.location_scanning,
-                        ScanningSettings.class.getName(),
-                        R.drawable.ic_settings_location));
-
-        sResMap.put(SecuritySettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(SecuritySettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        SecuritySettings.class.getName(),
-                        R.drawable.ic_settings_security));
-
-        sResMap.put(ScreenPinningSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(ScreenPinningSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        ScreenPinningSettings.class.getName(),
-                        R.drawable.ic_settings_security));
-
-        sResMap.put(InputMethodAndLanguageSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(InputMethodAndLanguageSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        InputMethodAndLanguageSettings.class.getName(),
-                        R.drawable.ic_settings_language));
-
-        sResMap.put(PrivacySettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(PrivacySettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        PrivacySettings.class.getName(),
-                        R.drawable.ic_settings_backup));
-
-        sResMap.put(DateTimeSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(DateTimeSettings.class.getName()),
-                        R.xml.date_time_prefs,
-                        DateTimeSettings.class.getName(),
-                        R.drawable.ic_settings_date_time));
-
-        sResMap.put(AccessibilitySettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(AccessibilitySettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        AccessibilitySettings.class.getName(),
-                        R.drawable.ic_settings_accessibility));
-
-        sResMap.put(PrintSettingsFragment.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(PrintSettingsFragment.class.getName()),
-                        NO_DATA_RES_ID,
-                        PrintSettingsFragment.class.getName(),
-                        R.drawable.ic_settings_print));
-
-        sResMap.put(DevelopmentSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(DevelopmentSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        DevelopmentSettings.class.getName(),
-                        R.drawable.ic_settings_development));
-
-        sResMap.put(DeviceInfoSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(DeviceInfoSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        DeviceInfoSettings.class.getName(),
-                        R.drawable.ic_settings_about));
-
-        sResMap.put(LegalSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(LegalSettings.class.getName()),
-                        NO_DATA_RES_ID,
-                        LegalSettings.class.getName(),
-                        R.drawable.ic_settings_about));
-
-        sResMap.put(WifiCallingSettings.class.getName(),
-                new SearchIndexableResource(
-                        Ranking.getRankForClassName(WifiCallingSettings.class.getName()),
-                        R.xml.wifi_calling_settings,
-                        WifiCallingSettings.class.getName(),
-                        R.drawable.ic_settings_wireless));
+        addIndex("com.android.settings.wifi.WifiSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_wireless);
+
+        addIndex("com.android.settings.wifi.AdvancedWifiSettings",
+                R.xml.wifi_advanced_settings, R.drawable.ic_settings_wireless);
+
+        addIndex("com.android.settings.wifi.SavedAccessPointsWifiSettings",
+                R.xml.wifi_display_saved_access_points, R.drawable.ic_settings_wireless);
+
+        addIndex("com.android.settings.bluetooth.BluetoothSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_bluetooth);
+
+        addIndex("com.android.settings.sim.SimSettings",
+                NO_DATA_RES_ID, R.drawable.ic_sim_sd);
+
+        addIndex("com.android.settings.DataUsageSummary",
+                NO_DATA_RES_ID, R.drawable.ic_settings_data_usage);
+
+        addIndex("com.android.settings.net.DataUsageMeteredSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_data_usage);
+
+        addIndex("com.android.settings.WirelessSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_more);
+
+        addIndex("com.android.settings.HomeSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_home);
+
+        addIndex("com.android.settings.DisplaySettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_display);
+
+        addIndex("com.android.settings.WallpaperTypeSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_display);
+
+        addIndex("com.android.settings.notification.NotificationSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_notifications);
+
+        addIndex("com.android.settings.notification.OtherSoundSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_notifications);
+
+        addIndex("com.android.settings.notification.ZenModeSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_notifications);
+
+        addIndex("com.android.settings.notification.ZenModePrioritySettings",
+                R.xml.zen_mode_priority_settings, R.drawable.ic_settings_notifications);
+
+        addIndex("com.android.settings.deviceinfo.StorageSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_storage);
+
+        addIndex("com.android.settings.fuelgauge.PowerUsageSummary",
+                R.xml.power_usage_summary, R.drawable.ic_settings_battery);
+
+        addIndex("com.android.settings.fuelgauge.BatterySaverSettings",
+                R.xml.battery_saver_settings, R.drawable.ic_settings_battery);
+
+        addIndex("com.android.settings.applications.AdvancedAppSettings",
+                R.xml.advanced_apps, R.drawable.ic_settings_applications);
+
+        addIndex("com.android.settings.applications.ManageDefaultApps",
+                NO_DATA_RES_ID, R.drawable.ic_settings_applications);
+
+        addIndex("com.android.settings.users.UserSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_multiuser);
+
+        addIndex("com.android.settings.location.LocationSettings",
+                R.xml.location_settings, R.drawable.ic_settings_location);
+
+        addIndex("com.android.settings.location.ScanningSettings",
+                R.xml.location_scanning, R.drawable.ic_settings_location);
+
+        addIndex("com.android.settings.SecuritySettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_security);
+
+        addIndex("com.android.settings.ScreenPinningSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_security);
+
+        addIndex("com.android.settings.inputmethod.InputMethodAndLanguageSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_language);
+
+        addIndex("com.android.settings.PrivacySettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_backup);
+
+        addIndex("com.android.settings.DateTimeSettings",
+                R.xml.date_time_prefs, R.drawable.ic_settings_date_time);
+
+        addIndex("com.android.settings.accessibility.AccessibilitySettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_accessibility);
+
+        addIndex("com.android.settings.print.PrintSettingsFragment",
+                NO_DATA_RES_ID, R.drawable.ic_settings_print);
+
+        addIndex("com.android.settings.DevelopmentSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_development);
+
+        addIndex("com.android.settings.DeviceInfoSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_about);
+
+        addIndex("com.android.settings.LegalSettings",
+                NO_DATA_RES_ID, R.drawable.ic_settings_about);
+
+        addIndex("com.android.settings.WifiCallingSettings",
+                R.xml.wifi_calling_settings, R.drawable.ic_settings_wireless);
     }
 
     private SearchIndexableResources() {
     }
 
+    private static void addIndex(String className, int xmlResId, int iconResId) {
+        sResMap.put(className, new SearchIndexableResource(
+                Ranking.getRankForClassName(className), xmlResId, className, iconResId));
+    }
+
     public static int size() {
         return sResMap.size();
     }
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Split strings into the trigrams used for finding near matches of a misspelled query.
+ *
+ * Words are normalized like for the full-text search, then padded with two spaces before and
+ * one after so that the start and the end of a word weigh more than its middle: "wifi" gives
+ * "  w", " wi", "wif", "ifi" and "fi ".
+ */
+final class Trigrams {
+
+    private Trigrams() {
+    }
+
+    /**
+     * Return the distinct trigrams of the words of the values, in order of appearance.
+     */
+    static String[] of(String... values) {
+        final Set<String> trigrams = new LinkedHashSet<String>();
+        for (String value : values) {
+            if (value == null) {
+                continue;
+            }
+            for (String word : PrefixIndex.split(Index.normalizeString(value))) {
+                final String padded = "  " + word + " ";
+                final int count = padded.length() - 2;
+                for (int n = 0; n < count; n++) {
+                    trigrams.add(padded.substring(n, n + 3));
+                }
+            }
+        }
+        return trigrams.toArray(new String[trigrams.size()]);
+    }
+
+    /**
+     * Return the number of letters and digits of the words of a value.
+     */
+    static int getWordsLength(String value) {
+        int result = 0;
+        for (String word : PrefixIndex.split(Index.normalizeString(value))) {
+            result += word.length();
+        }
+        return result;
+    }
+}
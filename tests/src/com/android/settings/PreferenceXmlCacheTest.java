@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.preference.Preference;
+import android.preference.PreferenceFragment;
+import android.preference.PreferenceGroup;
+import android.test.ActivityInstrumentationTestCase2;
+import android.text.TextUtils;
+
+/**
+ * Checks that the preferences created by {@link PreferenceXmlCache} are the same as the ones
+ * inflated from the XML.
+ */
+public class PreferenceXmlCacheTest extends ActivityInstrumentationTestCase2<Settings> {
+
+    // Resources using the attributes, preferences and intents supported by the cache
+    private static final int[] XML_RES_IDS = {
+            R.xml.date_time_prefs,
+            R.xml.testing_settings,
+            R.xml.about_legal
+    };
+
+    public PreferenceXmlCacheTest() {
+        super(Settings.class);
+    }
+
+    public void testCachedPreferencesMatchInflatedOnes() throws Throwable {
+        final Activity activity = getActivity();
+        for (int resId : XML_RES_IDS) {
+            PreferenceXmlCache.preload(activity, resId);
+        }
+
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int resId : XML_RES_IDS) {
+                    final PreferenceFragment inflated = addFragment(activity);
+                    inflated.addPreferencesFromResource(resId);
+
+                    final PreferenceFragment cached = addFragment(activity);
+                    assertTrue("Resource " + resId + " is not cached",
+                            PreferenceXmlCache.addPreferences(cached, resId));
+
+                    assertSamePreferences(inflated.getPreferenceScreen(),
+                            cached.getPreferenceScreen());
+                }
+            }
+        });
+    }
+
+    private static PreferenceFragment addFragment(Activity activity) {
+        final PreferenceFragment fragment = new PreferenceFragment();
+        activity.getFragmentManager().beginTransaction().add(fragment, null).commit();
+        activity.getFragmentManager().executePendingTransactions();
+        return fragment;
+    }
+
+    private static void assertSamePreferences(Preference expected, Preference actual) {
+        final String name = String.valueOf(expected.getKey()) + " / " + expected.getTitle();
+        assertEquals(name, expected.getClass(), actual.getClass());
+        assertEquals(name, expected.getKey(), actual.getKey());
+        assertTrue(name, TextUtils.equals(expected.getTitle(), actual.getTitle()));
+        assertEquals(name, expected.getTitleRes(), actual.getTitleRes());
+        assertTrue(name, TextUtils.equals(expected.getSummary(), actual.getSummary()));
+        assertEquals(name, expected.getOrder(), actual.getOrder());
+        assertEquals(name, expected.isEnabled(), actual.isEnabled());
+        assertEquals(name, toUri(expected.getIntent()), toUri(actual.getIntent()));
+
+        if (expected instanceof PreferenceGroup) {
+            final PreferenceGroup expectedGroup = (PreferenceGroup) expected;
+            final PreferenceGroup actualGroup = (PreferenceGroup) actual;
+            assertEquals(name, expectedGroup.getPreferenceCount(),
+                    actualGroup.getPreferenceCount());
+            for (int n = 0; n < expectedGroup.getPreferenceCount(); n++) {
+                assertSamePreferences(expectedGroup.getPreference(n),
+                        actualGroup.getPreference(n));
+            }
+        }
+    }
+
+    private static String toUri(Intent intent) {
+        return (intent != null) ? intent.toUri(0) : null;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.test.AndroidTestCase;
+
+import com.android.settingslib.applications.ApplicationsState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class AppPrefixIndexTest extends AndroidTestCase {
+
+    private static final String GOOGLE_PLAY_STORE = "Google Play Store";
+    private static final String PLAY_GAMES = "Play Games";
+    private static final String CALCULATOR = "Calculator";
+    private static final String CALENDAR = "Calendar";
+    private static final String PLAY_MOVIES = "Play Movies & TV";
+    private static final String CLOCK = "Clock";
+    private static final String CAFE_PLAY = "Caf\u00e9 Play";
+    private static final String MUSIC_MAKER = "Music Maker";
+
+    private ArrayList<String> mApps;
+    private AppPrefixIndex<String> mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mApps = new ArrayList<String>(Arrays.asList(GOOGLE_PLAY_STORE, PLAY_GAMES, CALCULATOR,
+                CALENDAR, PLAY_MOVIES, CLOCK, CAFE_PLAY, MUSIC_MAKER));
+        final ArrayList<String> labels = new ArrayList<String>();
+        for (String app : mApps) {
+            labels.add(ApplicationsState.normalize(app));
+        }
+        mIndex = new AppPrefixIndex<String>(mApps, labels);
+    }
+
+    public void testEmptyPrefixReturnsAllApps() {
+        assertSame(mApps, mIndex.filter(null));
+        assertSame(mApps, mIndex.filter(""));
+    }
+
+    public void testPrefixMatchesTheStartOfAnyWord() {
+        assertFilter("play", GOOGLE_PLAY_STORE, PLAY_GAMES, PLAY_MOVIES, CAFE_PLAY);
+        assertFilter("STO", GOOGLE_PLAY_STORE);
+        assertFilter("caf\u00e9", CAFE_PLAY);
+        assertFilter("cafe", CAFE_PLAY);
+        // Not at the start of a word
+        assertFilter("lay");
+    }
+
+    public void testPrefixSpanningSeveralWords() {
+        assertFilter("google play", GOOGLE_PLAY_STORE);
+        assertFilter("play s", GOOGLE_PLAY_STORE);
+        assertFilter("play m", PLAY_MOVIES);
+        assertFilter("movies & t", PLAY_MOVIES);
+        assertFilter("play games x");
+    }
+
+    public void testAppMatchingSeveralWordsIsReturnedOnce() {
+        assertFilter("m", PLAY_MOVIES, MUSIC_MAKER);
+        assertFilter("ma", MUSIC_MAKER);
+        assertFilter("p", GOOGLE_PLAY_STORE, PLAY_GAMES, PLAY_MOVIES, CAFE_PLAY);
+    }
+
+    public void testNarrowingThenWideningThePrefix() {
+        assertFilter("c", CALCULATOR, CALENDAR, CLOCK, CAFE_PLAY);
+        assertFilter("ca", CALCULATOR, CALENDAR, CAFE_PLAY);
+        assertFilter("cal", CALCULATOR, CALENDAR);
+        assertFilter("calc", CALCULATOR);
+        // Back to shorter prefixes, which the last matches do not cover
+        assertFilter("cal", CALCULATOR, CALENDAR);
+        assertFilter("c", CALCULATOR, CALENDAR, CLOCK, CAFE_PLAY);
+        // A prefix which does not extend the last one
+        assertFilter("cl", CLOCK);
+        assertFilter("cale", CALENDAR);
+    }
+
+    public void testNoMatches() {
+        assertFilter("x");
+        // Extending a prefix without matches
+        assertFilter("xy");
+        assertFilter("calx");
+        // Matches again once the prefix no longer extends the one without matches
+        assertFilter("cal", CALCULATOR, CALENDAR);
+        assertFilter("x");
+        assertFilter("g", GOOGLE_PLAY_STORE, PLAY_GAMES);
+    }
+
+    // The matches are expected in the order of the indexed apps
+    private void assertFilter(String prefix, String... expected) {
+        assertEquals(prefix, Arrays.asList(expected), mIndex.filter(prefix));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+/**
+ * Checks the migration of an Index created with schema version 116 to the current schema.
+ */
+public class IndexDatabaseHelperUpgradeTest extends SearchIndexTestCase {
+
+    // Schema version 116: all the data in a full content FTS table
+    private static final String CREATE_INDEX_TABLE_116 =
+            "CREATE VIRTUAL TABLE prefs_index USING fts4(locale, data_rank, data_title," +
+                    " data_title_normalized, data_summary_on, data_summary_on_normalized," +
+                    " data_summary_off, data_summary_off_normalized, data_entries," +
+                    " data_keywords, screen_title, class_name, icon, intent_action," +
+                    " intent_target_package, intent_target_class, enabled," +
+                    " data_key_reference, user_id, package_name);";
+
+    private static final String CREATE_META_TABLE_116 =
+            "CREATE TABLE meta_index(build VARCHAR(32) NOT NULL, indexable VARCHAR(256)," +
+                    " locale VARCHAR(32), fingerprint VARCHAR(128))";
+
+    private static final String CREATE_SAVED_QUERIES_TABLE_116 =
+            "CREATE TABLE saved_queries(query VARCHAR(64) NOT NULL, timestamp INTEGER)";
+
+    private static final String MATCH_SQL =
+            "SELECT docid FROM prefs_index WHERE prefs_index MATCH ? ORDER BY docid";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // mHelper has not opened the database yet, it will upgrade this one
+        createDatabase116();
+    }
+
+    private void createDatabase116() {
+        final SQLiteDatabase db =
+                getContext().openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        try {
+            db.execSQL(CREATE_INDEX_TABLE_116);
+            db.execSQL(CREATE_META_TABLE_116);
+            db.execSQL(CREATE_SAVED_QUERIES_TABLE_116);
+            db.execSQL("INSERT INTO meta_index(build) VALUES (?)",
+                    new Object[] { Build.VERSION.INCREMENTAL });
+            db.execSQL("INSERT INTO meta_index VALUES (?, 'com.android.settings.WifiSettings'," +
+                    " 'en_US', 'abcdef')", new Object[] { Build.VERSION.INCREMENTAL });
+            db.execSQL("INSERT INTO saved_queries VALUES ('wifi', 1000)");
+            insertRow116(db, 10, "Wi-Fi calling", "wi-fi calling",
+                    "com.android.settings.WifiSettings", "wifi_calling");
+            insertRow116(db, 11, "Bluetooth", "bluetooth",
+                    "com.android.settings.bluetooth.BluetoothSettings", "bluetooth");
+            db.setVersion(116);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void insertRow116(SQLiteDatabase db, int docid, String title,
+            String normalizedTitle, String className, String key) {
+        db.execSQL("INSERT INTO prefs_index(docid, locale, data_rank, data_title," +
+                " data_title_normalized, class_name, enabled, data_key_reference, user_id," +
+                " package_name) VALUES (?, 'en_US', 1, ?, ?, ?, 1, ?, -1," +
+                " 'com.android.settings')",
+                new Object[] { docid, title, normalizedTitle, className, key });
+    }
+
+    public void testUpgradeKeepsTheDataSearchable() {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        assertEquals(119, db.getVersion());
+
+        assertMatches(db, "bluetooth", 11);
+        assertMatches(db, "calling", 10);
+        // Prefix queries use the prefix indexes of the new table
+        assertMatches(db, "blu*", 11);
+        assertMatches(db, "c*", 10);
+
+        final Cursor cursor = db.rawQuery("SELECT class_name, data_key_reference, package_name" +
+                " FROM prefs_data WHERE docid = 11", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("com.android.settings.bluetooth.BluetoothSettings", cursor.getString(0));
+            assertEquals("bluetooth", cursor.getString(1));
+            assertEquals("com.android.settings", cursor.getString(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testUpgradeKeepsTheMetadataAndSavedQueries() {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+
+        // The build row is kept, the fingerprints are dropped as the trigrams need indexing
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, "meta_index"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "meta_index", "indexable IS NOT NULL"));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, "saved_queries"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "prefs_trigrams"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "search_clicks"));
+    }
+
+    public void testTriggersKeepTheUpgradedIndexInSync() {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+
+        db.execSQL("INSERT INTO prefs_data(docid, locale, data_title, data_title_normalized)" +
+                " VALUES (12, 'en_US', 'Airplane mode', 'airplane mode')");
+        assertMatches(db, "airplane", 12);
+
+        db.execSQL("UPDATE prefs_data SET data_title = 'Flight mode'," +
+                " data_title_normalized = 'flight mode' WHERE docid = 12");
+        assertMatches(db, "airplane");
+        assertMatches(db, "flight", 12);
+        assertMatches(db, "mode", 12);
+
+        // Replacing a row goes through the delete trigger
+        db.execSQL("INSERT OR REPLACE INTO prefs_data(docid, locale, data_title," +
+                " data_title_normalized) VALUES (11, 'en_US', 'Bluetooth tethering'," +
+                " 'bluetooth tethering')");
+        assertMatches(db, "bluetooth", 11);
+        assertMatches(db, "tethering", 11);
+
+        db.execSQL("INSERT INTO prefs_trigrams(trigram, docid) VALUES ('cal', 10)");
+        db.execSQL("DELETE FROM prefs_data WHERE docid = 10");
+        assertMatches(db, "calling");
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "prefs_trigrams"));
+    }
+
+    private static void assertMatches(SQLiteDatabase db, String query, int... docids) {
+        final Cursor cursor = db.rawQuery(MATCH_SQL, new String[] { query });
+        try {
+            assertEquals(query, docids.length, cursor.getCount());
+            for (int docid : docids) {
+                assertTrue(query, cursor.moveToNext());
+                assertEquals(query, docid, cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+import com.android.settings.search.IndexDatabaseHelper.TrigramsColumns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public class NearMatchesTest extends SearchIndexTestCase {
+
+    private static final String BLUETOOTH = "Bluetooth";
+    private static final String DISPLAY = "Display";
+
+    private Index mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        insertRow(db, 1, BLUETOOTH);
+        insertRow(db, 2, DISPLAY);
+        mIndex = new Index(getContext(), "com.android.settings", mHelper,
+                new Handler(Looper.getMainLooper()), Index.SAVED_QUERIES_WRITE_DELAY_MILLIS);
+    }
+
+    // Same data as written by the Index for a row, with the trigrams of its title
+    private static void insertRow(SQLiteDatabase db, int docid, String title) {
+        final ContentValues values = new ContentValues();
+        values.put(IndexColumns.DOCID, docid);
+        values.put(IndexColumns.LOCALE, Locale.getDefault().toString());
+        values.put(IndexColumns.DATA_RANK, docid);
+        values.put(IndexColumns.DATA_TITLE, title);
+        values.put(IndexColumns.DATA_TITLE_NORMALIZED, Index.normalizeString(title));
+        values.put(IndexColumns.ENABLED, 1);
+        db.insertOrThrow(Tables.TABLE_PREFS_DATA, null, values);
+
+        for (String trigram : Trigrams.of(title)) {
+            final ContentValues trigramValues = new ContentValues();
+            trigramValues.put(TrigramsColumns.TRIGRAM, trigram);
+            trigramValues.put(TrigramsColumns.DOCID, docid);
+            db.insertOrThrow(Tables.TABLE_PREFS_TRIGRAMS, null, trigramValues);
+        }
+    }
+
+    public void testMisspelledQueryFindsNearMatches() {
+        assertSearch("bluetoth", BLUETOOTH);
+        assertSearch("bleutooth", BLUETOOTH);
+        assertSearch("dispaly", DISPLAY);
+    }
+
+    public void testQueryWithMatchesHasNoNearMatches() {
+        assertSearch("blue", BLUETOOTH);
+        assertSearch("d", DISPLAY);
+    }
+
+    public void testUnrelatedQueryFindsNothing() {
+        assertSearch("battery");
+        // Too short for looking for near matches
+        assertSearch("bx");
+    }
+
+    private void assertSearch(String query, String... titles) {
+        final List<String> result = new ArrayList<String>();
+        final Cursor cursor = mIndex.search(query);
+        try {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getString(Index.COLUMN_INDEX_TITLE));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(query, Arrays.asList(titles), result);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.settings.search.IndexDatabaseHelper.ClicksColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class PopularityScoresTest extends SearchIndexTestCase {
+
+    private static final double DELTA = 1e-9;
+    private static final long HALF_LIFE = PopularityScores.HALF_LIFE_MILLIS;
+    // A time in 2015, scores keep their precision with real timestamps
+    private static final long NOW = 1445000000000L;
+
+    private static final String WIFI = "com.android.settings.wifi.WifiSettings";
+    private static final String DISPLAY = "com.android.settings.DisplaySettings";
+    private static final String SOUND = "com.android.settings.notification.NotificationSettings";
+
+    public void testFirstClick() {
+        // log2(1) + t / HALF_LIFE
+        assertEquals((double) NOW / HALF_LIFE, click(Double.NEGATIVE_INFINITY, NOW), DELTA);
+        assertEquals(0, click(Double.NEGATIVE_INFINITY, 0), DELTA);
+    }
+
+    public void testClicksAtTheSameTime() {
+        final double time = (double) NOW / HALF_LIFE;
+        final double once = click(Double.NEGATIVE_INFINITY, NOW);
+        final double twice = click(once, NOW);
+        final double thrice = click(twice, NOW);
+        assertEquals(1 + time, twice, DELTA);
+        assertEquals(Math.log(3) / Math.log(2) + time, thrice, DELTA);
+    }
+
+    public void testScoreHalvesEveryHalfLife() {
+        // One click decayed to 1/2, plus one click
+        final double score = click(click(Double.NEGATIVE_INFINITY, 0), HALF_LIFE);
+        assertEquals(Math.log(1.5) / Math.log(2) + 1, score, DELTA);
+
+        // Two clicks decayed to 1/4 each, plus one click
+        final double twice = click(click(Double.NEGATIVE_INFINITY, NOW), NOW);
+        assertEquals(Math.log(1.5) / Math.log(2) + (double) (NOW + 2 * HALF_LIFE) / HALF_LIFE,
+                click(twice, NOW + 2 * HALF_LIFE), DELTA);
+    }
+
+    public void testScoresUpdatedAtDifferentTimesCompare() {
+        // Two clicks a half life ago are worth one click now
+        final double twoOld = click(click(Double.NEGATIVE_INFINITY, NOW), NOW);
+        final double oneNew = click(Double.NEGATIVE_INFINITY, NOW + HALF_LIFE);
+        assertEquals(oneNew, twoOld, DELTA);
+
+        // Three clicks two half lives ago are worth 3/4 of a click now
+        final double threeOlder = click(twoOld, NOW);
+        final double oneNewer = click(Double.NEGATIVE_INFINITY, NOW + 2 * HALF_LIFE);
+        assertTrue(threeOlder < oneNewer);
+        assertEquals(Math.log(0.75) / Math.log(2), threeOlder - oneNewer, DELTA);
+    }
+
+    public void testAddClickKeepsScoresByResult() {
+        final PopularityScores scores = PopularityScores.load(mHelper.getReadableDatabase());
+        final double first = scores.addClick(WIFI, "wifi", NOW);
+        assertEquals((double) NOW / HALF_LIFE, first, DELTA);
+        assertEquals(click(first, NOW + 1), scores.addClick(WIFI, "wifi", NOW + 1), DELTA);
+        // Other keys of the same class have their own score
+        assertEquals(first, scores.addClick(WIFI, "wifi_calling", NOW), DELTA);
+        // Results without a key are stored with an empty key
+        scores.addClick(DISPLAY, null, NOW);
+        assertEquals(1 + (double) NOW / HALF_LIFE, scores.addClick(DISPLAY, "", NOW), DELTA);
+    }
+
+    public void testComparator() {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        insertClick(db, WIFI, "wifi", click(Double.NEGATIVE_INFINITY, NOW));
+        insertClick(db, DISPLAY, PopularityScores.getKey(null),
+                click(click(Double.NEGATIVE_INFINITY, NOW), NOW));
+        final PopularityScores scores = PopularityScores.load(db);
+
+        final Object[] wifi = { WIFI, "wifi" };
+        final Object[] display = { DISPLAY, null };
+        final Object[] sound = { SOUND, "sound" };
+        final Object[] wifiCalling = { WIFI, "wifi_calling" };
+        final List<Object[]> rows =
+                new ArrayList<Object[]>(Arrays.asList(sound, wifi, wifiCalling, display));
+
+        final Comparator<Object[]> comparator = scores.getComparator(0, 1);
+        // Clicks added after getting the comparator do not change its order
+        scores.addClick(SOUND, "sound", NOW + 10 * HALF_LIFE);
+
+        // The sort is stable: results without clicks keep their order, last
+        Collections.sort(rows, comparator);
+        assertEquals(Arrays.asList(display, wifi, sound, wifiCalling), rows);
+
+        Collections.sort(rows, scores.getComparator(0, 1));
+        assertEquals(Arrays.asList(sound, display, wifi, wifiCalling), rows);
+    }
+
+    private static double click(double score, long timestamp) {
+        return PopularityScores.addClick(score, timestamp);
+    }
+
+    private static void insertClick(SQLiteDatabase db, String className, String key,
+            double popularity) {
+        final ContentValues values = new ContentValues();
+        values.put(ClicksColumns.CLASS_NAME, className);
+        values.put(ClicksColumns.KEY, key);
+        values.put(ClicksColumns.TIME_STAMP, NOW);
+        values.put(ClicksColumns.POPULARITY, popularity);
+        db.insertOrThrow(Tables.TABLE_SEARCH_CLICKS, null, values);
+    }
+}
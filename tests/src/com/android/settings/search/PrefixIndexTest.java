@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PrefixIndexTest extends SearchIndexTestCase {
+
+    private static final String LOCALE = "en_US";
+
+    // Same order as the columns of the search results, see Index.refineSearchResults()
+    private static final String[] COLUMNS = {
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS
+    };
+    private static final String[] PRIMARY_COLUMNS = {
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_KEYWORDS
+    };
+    private static final String[] SECONDARY_COLUMNS = {
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_ENTRIES
+    };
+
+    private static final String WIFI = "Wi-Fi";
+    private static final String BLUETOOTH = "Bluetooth";
+    private static final String WIFI_CALLING = "Wi-Fi calling";
+    private static final String TETHERING = "Tethering & portable hotspot";
+    private static final String DISPLAY = "Display";
+
+    private PrefixIndex mPrefixIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        insertRow(db, LOCALE, 1, true, WIFI, "Connect to networks", null, "wireless, wlan");
+        insertRow(db, LOCALE, 2, true, BLUETOOTH, "Connect to devices", null, null);
+        insertRow(db, LOCALE, 3, true, WIFI_CALLING, null, null, "call");
+        insertRow(db, LOCALE, 4, true, TETHERING, "Share the connection of the phone", null,
+                "bluetooth tethering");
+        insertRow(db, LOCALE, 5, true, DISPLAY, "Brightness", "Light|Dark", null);
+        // Neither disabled rows nor the rows of other locales are searched
+        insertRow(db, LOCALE, 6, false, "Blueprint", null, null, null);
+        insertRow(db, "fr_FR", 7, true, "Bluetooth", null, null, null);
+
+        mPrefixIndex = PrefixIndex.build(db, LOCALE, COLUMNS, PRIMARY_COLUMNS,
+                SECONDARY_COLUMNS);
+    }
+
+    private static void insertRow(SQLiteDatabase db, String locale, int rank, boolean enabled,
+            String title, String summary, String entries, String keywords) {
+        final ContentValues values = new ContentValues();
+        values.put(IndexColumns.LOCALE, locale);
+        values.put(IndexColumns.DATA_RANK, rank);
+        values.put(IndexColumns.ENABLED, enabled ? 1 : 0);
+        values.put(IndexColumns.DATA_TITLE, title);
+        values.put(IndexColumns.DATA_SUMMARY_ON, summary);
+        values.put(IndexColumns.DATA_ENTRIES, entries);
+        values.put(IndexColumns.DATA_KEYWORDS, keywords);
+        db.insertOrThrow(Tables.TABLE_PREFS_DATA, null, values);
+    }
+
+    public void testGetPrefixes() {
+        assertEquals(Arrays.asList("wifi", "hotspot", "tethering"),
+                Arrays.asList(PrefixIndex.getPrefixes("Wi-Fi, Hotspot & tethering")));
+        assertEquals(0, PrefixIndex.getPrefixes("").length);
+        assertEquals(0, PrefixIndex.getPrefixes(" & ").length);
+    }
+
+    public void testSearch() {
+        assertSearch("blue", BLUETOOTH, TETHERING);
+        assertSearch("BLUETOOTH", BLUETOOTH, TETHERING);
+        assertSearch("wifi", WIFI, WIFI_CALLING);
+        assertSearch("wi-fi", WIFI, WIFI_CALLING);
+        assertSearch("wlan", WIFI);
+        assertSearch("dark", DISPLAY);
+        assertSearch("fi");
+        assertSearch("blueprint");
+        assertSearch("");
+    }
+
+    public void testSearchPutsPrimaryMatchesFirst() {
+        // Matches on the title or the keywords come first, then the ones on the summaries
+        assertSearch("c", WIFI_CALLING, WIFI, BLUETOOTH, TETHERING);
+        assertSearch("connect", WIFI, BLUETOOTH, TETHERING);
+    }
+
+    public void testSearchMatchesEveryPrefix() {
+        assertSearch("wi cal", WIFI_CALLING);
+        assertSearch("cal wi", WIFI_CALLING);
+        assertSearch("bluetooth t", TETHERING);
+        assertSearch("share phone", TETHERING);
+        assertSearch("wifi bluetooth");
+    }
+
+    public void testRefinementMatchesSearch() {
+        final String[] queries = {
+                "b", "bl", "blu", "bluetooth", "bluetooth ", "bluetooth t", "bluetooth tethering"
+        };
+        List<Object[]> rows = getRows(mPrefixIndex.search(queries[0], null, null));
+        for (int n = 1; n < queries.length; n++) {
+            assertTrue(queries[n], Index.isRefinement(queries[n - 1], queries[n]));
+            rows = Index.refineSearchResults(rows, queries[n], null);
+            assertEquals(queries[n], getTitles(mPrefixIndex.search(queries[n], null, null)),
+                    getTitles(rows));
+        }
+        assertEquals(Arrays.asList(TETHERING), getTitles(rows));
+    }
+
+    public void testIsRefinement() {
+        assertTrue(Index.isRefinement("wi", "wifi"));
+        assertTrue(Index.isRefinement("wifi", "wifi"));
+        assertFalse(Index.isRefinement("wifi", "wi"));
+        assertFalse(Index.isRefinement("wifi", "bluetooth"));
+        assertFalse(Index.isRefinement("", "wifi"));
+        assertFalse(Index.isRefinement(null, "wifi"));
+    }
+
+    public void testSearchIsCancelled() {
+        final CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+        try {
+            mPrefixIndex.search("blue", signal, null);
+            fail("The search has not been cancelled");
+        } catch (OperationCanceledException e) {
+            // Expected
+        }
+    }
+
+    private void assertSearch(String query, String... titles) {
+        assertEquals(query, Arrays.asList(titles),
+                getTitles(mPrefixIndex.search(query, null, null)));
+    }
+
+    private static List<Object[]> getRows(Cursor cursor) {
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        try {
+            while (cursor.moveToNext()) {
+                final Object[] row = new Object[cursor.getColumnCount()];
+                for (int n = 0; n < row.length; n++) {
+                    row[n] = PrefixIndex.getValue(cursor, n);
+                }
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private static List<String> getTitles(Cursor cursor) {
+        return getTitles(getRows(cursor));
+    }
+
+    private static List<String> getTitles(List<Object[]> rows) {
+        final List<String> titles = new ArrayList<String>();
+        for (Object[] row : rows) {
+            titles.add((String) row[Index.COLUMN_INDEX_TITLE]);
+        }
+        return titles;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import com.android.settings.search.IndexDatabaseHelper.SavedQueriesColums;
+import com.android.settings.search.IndexDatabaseHelper.Tables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SavedQueriesTest extends SearchIndexTestCase {
+
+    private static final int MAX_QUERIES = Index.MAX_SAVED_SEARCH_QUERY;
+    // Long enough for the scheduled writes to never run during a test
+    private static final long WRITE_DELAY = 60 * 60 * 1000;
+
+    private SavedQueries mSavedQueries;
+    private HandlerThread mHandlerThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSavedQueries = new SavedQueries(MAX_QUERIES);
+        mHandlerThread = new HandlerThread("SavedQueriesTest");
+        mHandlerThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    /**
+     * Records the time of the writes scheduled by the Index, they are run by the test itself.
+     */
+    private static class RecordingHandler extends Handler {
+        final List<Long> scheduledTimes = new ArrayList<Long>();
+
+        RecordingHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            scheduledTimes.add(uptimeMillis);
+            return super.sendMessageAtTime(msg, uptimeMillis);
+        }
+    }
+
+    public void testSuggestions() {
+        mSavedQueries.add("wifi", 1);
+        mSavedQueries.add("Bluetooth", 2);
+        mSavedQueries.add("wifi calling", 3);
+        mSavedQueries.add("battery", 4);
+
+        assertEquals(Arrays.asList("battery", "wifi calling", "Bluetooth", "wifi"),
+                mSavedQueries.getSuggestions(null, 10));
+        assertEquals(Arrays.asList("battery", "wifi calling"),
+                mSavedQueries.getSuggestions("", 2));
+        assertEquals(Arrays.asList("battery", "Bluetooth"), mSavedQueries.getSuggestions("b", 10));
+        assertEquals(Arrays.asList("Bluetooth"), mSavedQueries.getSuggestions("BLUE", 10));
+        assertEquals(Arrays.asList("wifi calling"), mSavedQueries.getSuggestions("wifi", 1));
+        assertTrue(mSavedQueries.getSuggestions("display", 10).isEmpty());
+
+        // Saving a query again moves it first
+        mSavedQueries.add("wifi", 5);
+        assertEquals(Arrays.asList("wifi", "battery", "wifi calling", "Bluetooth"),
+                mSavedQueries.getSuggestions(null, 10));
+    }
+
+    public void testKeepsTheMostRecentQueries() {
+        for (int n = 0; n < MAX_QUERIES + 6; n++) {
+            mSavedQueries.add(getQuery(n), n);
+        }
+        final List<String> suggestions = mSavedQueries.getSuggestions(null, MAX_QUERIES + 6);
+        assertEquals(MAX_QUERIES, suggestions.size());
+        assertEquals(getQuery(MAX_QUERIES + 5), suggestions.get(0));
+        assertEquals(getQuery(6), suggestions.get(MAX_QUERIES - 1));
+
+        mSavedQueries.write(mHelper.getWritableDatabase());
+        final List<String> saved = getSavedQueries(mHelper.getReadableDatabase());
+        assertEquals(MAX_QUERIES, saved.size());
+        assertEquals(suggestions, saved);
+    }
+
+    public void testWritesOnlyOnRequest() {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        assertFalse(mSavedQueries.hasPendingWrites());
+
+        mSavedQueries.add("wifi", 1);
+        mSavedQueries.add("battery", 2);
+        mSavedQueries.add("wifi", 3);
+        assertTrue(mSavedQueries.hasPendingWrites());
+        assertTrue(getSavedQueries(db).isEmpty());
+
+        // The queries are written once, with their last timestamp
+        mSavedQueries.write(db);
+        assertFalse(mSavedQueries.hasPendingWrites());
+        assertEquals(Arrays.asList("wifi", "battery"), getSavedQueries(db));
+        assertEquals(3, getTimestamp(db, "wifi"));
+
+        // Nothing left to write
+        mSavedQueries.write(db);
+        assertEquals(Arrays.asList("wifi", "battery"), getSavedQueries(db));
+    }
+
+    public void testWriteTrimsTheDatabase() {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        for (int n = 0; n < MAX_QUERIES; n++) {
+            insertQuery(db, getQuery(n), n);
+        }
+        mSavedQueries.add("wifi", MAX_QUERIES);
+        mSavedQueries.write(db);
+
+        final List<String> saved = getSavedQueries(db);
+        assertEquals(MAX_QUERIES, saved.size());
+        assertEquals("wifi", saved.get(0));
+        assertFalse(saved.contains(getQuery(0)));
+    }
+
+    public void testFailedWriteIsRetried() {
+        final SQLiteDatabase db = SQLiteDatabase.create(null);
+        mSavedQueries.add("wifi", 1);
+        mSavedQueries.add("battery", 2);
+        try {
+            mSavedQueries.write(db);
+            fail("The queries have been written to a database without the saved queries table");
+        } catch (SQLiteException e) {
+            // Expected
+        } finally {
+            db.close();
+        }
+        assertTrue(mSavedQueries.hasPendingWrites());
+
+        // Queries added since the failure are the most recent ones
+        mSavedQueries.add("wifi", 3);
+        mSavedQueries.write(mHelper.getWritableDatabase());
+        assertEquals(Arrays.asList("wifi", "battery"),
+                getSavedQueries(mHelper.getReadableDatabase()));
+        assertEquals(3, getTimestamp(mHelper.getReadableDatabase(), "wifi"));
+    }
+
+    public void testLoad() {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        for (int n = 0; n < MAX_QUERIES + 6; n++) {
+            insertQuery(db, getQuery(n), n);
+        }
+
+        // Queries added before loading stay first
+        mSavedQueries.add(getQuery(MAX_QUERIES + 5), MAX_QUERIES + 10);
+        mSavedQueries.add("wifi", MAX_QUERIES + 11);
+        assertFalse(mSavedQueries.isLoaded());
+        mSavedQueries.load(db);
+        assertTrue(mSavedQueries.isLoaded());
+
+        final List<String> suggestions = mSavedQueries.getSuggestions(null, MAX_QUERIES + 6);
+        assertEquals(MAX_QUERIES, suggestions.size());
+        assertEquals("wifi", suggestions.get(0));
+        assertEquals(getQuery(MAX_QUERIES + 5), suggestions.get(1));
+        assertEquals(getQuery(MAX_QUERIES + 4), suggestions.get(2));
+        assertEquals(getQuery(7), suggestions.get(MAX_QUERIES - 1));
+
+        // Loading again does nothing
+        mSavedQueries.load(db);
+        assertEquals(suggestions, mSavedQueries.getSuggestions(null, MAX_QUERIES + 6));
+    }
+
+    public void testIndexWritesSavedQueriesAfterDelay() {
+        final RecordingHandler handler = new RecordingHandler(mHandlerThread.getLooper());
+        final Index index = new Index(getContext(), "com.android.settings", mHelper, handler,
+                WRITE_DELAY);
+        final SQLiteDatabase db = mHelper.getReadableDatabase();
+
+        final long firstTime = SystemClock.uptimeMillis();
+        index.addSavedQuery("wifi");
+        // Served from memory right away, written later
+        assertSuggestion(index, "wifi");
+        assertEquals(1, handler.scheduledTimes.size());
+        assertTrue(handler.scheduledTimes.get(0) >= firstTime + WRITE_DELAY);
+        assertTrue(getSavedQueries(db).isEmpty());
+
+        // Saving another query postpones the write
+        final long secondTime = SystemClock.uptimeMillis();
+        index.addSavedQuery("bluetooth");
+        assertEquals(2, handler.scheduledTimes.size());
+        assertTrue(handler.scheduledTimes.get(1) >= secondTime + WRITE_DELAY);
+        // The write is still pending
+        assertTrue(handler.hasMessages(0));
+        assertTrue(getSavedQueries(db).isEmpty());
+
+        // Both are written together
+        index.writeSavedQueries();
+        assertEquals(Arrays.asList("bluetooth", "wifi"), getSavedQueries(db));
+    }
+
+    private static void assertSuggestion(Index index, String query) {
+        final Cursor cursor = index.getSuggestions(query, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(query, cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String getQuery(int n) {
+        return "query " + n;
+    }
+
+    private static void insertQuery(SQLiteDatabase db, String query, long timestamp) {
+        final ContentValues values = new ContentValues();
+        values.put(SavedQueriesColums.QUERY, query);
+        values.put(SavedQueriesColums.TIME_STAMP, timestamp);
+        db.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
+    }
+
+    // The saved queries, the most recent first
+    private static List<String> getSavedQueries(SQLiteDatabase db) {
+        final List<String> result = new ArrayList<String>();
+        final Cursor cursor = db.query(Tables.TABLE_SAVED_QUERIES,
+                new String[] { SavedQueriesColums.QUERY }, null, null, null, null,
+                "rowId DESC");
+        try {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private static long getTimestamp(SQLiteDatabase db, String query) {
+        final Cursor cursor = db.query(Tables.TABLE_SAVED_QUERIES,
+                new String[] { SavedQueriesColums.TIME_STAMP }, SavedQueriesColums.QUERY + " = ?",
+                new String[] { query }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
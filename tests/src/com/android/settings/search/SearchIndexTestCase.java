@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Base class of the tests using a scratch search index database, so that they never touch the
+ * Index of the device. The database is deleted before and after every test.
+ */
+public abstract class SearchIndexTestCase extends AndroidTestCase {
+
+    protected static final String DATABASE_NAME = "search_index_test.db";
+
+    // Opened lazily, a test can still create the database file itself before using it
+    protected IndexDatabaseHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mHelper = new IndexDatabaseHelper(getContext(), DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+}
@@ -19,16 +19,43 @@ package com.android.settings.tests;
 import android.app.Activity;
 import android.test.LaunchPerformanceBase;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
 
-import java.util.Map;
+import com.android.settings.LaunchTrace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
 
 /**
  * Instrumentation class for Settings launch performance testing.
+ *
+ * Besides the total launch time, the results contain the start time and duration of each
+ * phase of the launch recorded by {@link LaunchTrace}. The phases taking more than the
+ * regression threshold, in percent, over their baseline are listed in the results. They are
+ * only reported and do not fail the run, the baseline is not measured on every device:
+ *
+ * adb shell am instrument -w -e regression_threshold 20 \
+ *     com.android.settings.tests/.SettingsLaunchPerformance
  */
 public class SettingsLaunchPerformance extends LaunchPerformanceBase {
 
     public static final String LOG_TAG = "SettingsLaunchPerformance";
 
+    private static final String ARG_REGRESSION_THRESHOLD = "regression_threshold";
+    private static final int DEFAULT_REGRESSION_THRESHOLD = 20;
+
+    private static final String BASELINE_FILE = "launch_phases_baseline.properties";
+
+    private static final String KEY_REGRESSIONS = "regressions";
+
+    // Max time to wait for the phases running after the launch, e.g. the Index update
+    private static final long PHASES_TIMEOUT_MILLIS = 10000;
+    private static final long PHASES_POLL_MILLIS = 100;
+
+    private int mRegressionThreshold = DEFAULT_REGRESSION_THRESHOLD;
+
     public SettingsLaunchPerformance() {
         super();
     }
@@ -37,6 +64,12 @@ public class SettingsLaunchPerformance extends LaunchPerformanceBase {
     public void onCreate(Bundle arguments) {
         super.onCreate(arguments);
 
+        final String threshold =
+                (arguments != null) ? arguments.getString(ARG_REGRESSION_THRESHOLD) : null;
+        if (threshold != null) {
+            mRegressionThreshold = Integer.parseInt(threshold);
+        }
+
         mIntent.setClassName(getTargetContext(), "com.android.settings.Settings");
         start();
     }
@@ -47,7 +80,75 @@ public class SettingsLaunchPerformance extends LaunchPerformanceBase {
     @Override
     public void onStart() {
         super.onStart();
+        LaunchTrace.reset();
         LaunchApp();
+
+        final long deadline = SystemClock.elapsedRealtime() + PHASES_TIMEOUT_MILLIS;
+        while (!LaunchTrace.isComplete() && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(PHASES_POLL_MILLIS);
+        }
+        final Bundle phases = LaunchTrace.getResults();
+        mResults.putAll(phases);
+
+        final String regressions = getRegressions(phases);
+        if (regressions.length() > 0) {
+            Log.w(LOG_TAG, "Launch phases over their baseline: " + regressions);
+            mResults.putString(KEY_REGRESSIONS, regressions);
+        }
         finish(Activity.RESULT_OK, mResults);
     }
+
+    /**
+     * @return the comma separated phases taking more than the regression threshold over their
+     * baseline, and the phases which have not been recorded.
+     */
+    private String getRegressions(Bundle phases) {
+        final Properties baseline = loadBaseline();
+        final StringBuilder sb = new StringBuilder();
+        for (String phase : LaunchTrace.PHASES) {
+            final String key = LaunchTrace.KEY_DURATION_PREFIX + phase;
+            final String baselineValue = baseline.getProperty(phase);
+            final boolean regressed;
+            if (!phases.containsKey(key)) {
+                Log.w(LOG_TAG, "Phase not recorded: " + phase);
+                regressed = true;
+            } else if (baselineValue == null) {
+                regressed = false;
+            } else {
+                final long duration = phases.getLong(key);
+                final long maxDuration =
+                        Long.parseLong(baselineValue) * (100 + mRegressionThreshold) / 100;
+                regressed = duration > maxDuration;
+                Log.i(LOG_TAG, phase + ": " + duration + " ms, baseline " + baselineValue
+                        + " ms");
+            }
+            if (regressed) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(phase);
+            }
+        }
+        return sb.toString();
+    }
+
+    private Properties loadBaseline() {
+        final Properties baseline = new Properties();
+        InputStream in = null;
+        try {
+            in = getContext().getAssets().open(BASELINE_FILE);
+            baseline.load(in);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot load the baseline " + BASELINE_FILE, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        return baseline;
+    }
 }